@@ -0,0 +1,58 @@
+package org.stratus;
+
+// A HashEngine that hashes through a BatchKernel, the way a GPU would
+// be driven: nonces are written into an array of BATCH_NONCES and the
+// kernel is launched over them in blocks of BatchKernel.BLOCK_SIZE.
+// Here the kernel is a single-threaded CpuBatchKernel per search
+// thread, since NonceSearch already spreads the work over our cores.
+//
+// Team Stratus.
+
+public class BatchEngine implements HashEngine {
+
+    private static final int BATCH_NONCES = 16 * BatchKernel.BLOCK_SIZE;
+
+    public String getName() {
+	return "batch";
+    }
+
+    public HashEngine.Scanner prepare(byte[] header, HashTarget target) {
+	return new Scanner(header, target);
+    }
+
+    private static class Scanner implements HashEngine.Scanner {
+
+	private final byte[]      header;
+	private final HashTarget  target;
+	private final BatchKernel kernel = new CpuBatchKernel(1);
+	private final long[]      nonces = new long[BATCH_NONCES];
+
+	Scanner(byte[] header, HashTarget target) {
+	    this.header = header;
+	    this.target = target;
+	    kernel.setProblem(header, target.getBytes());
+	}
+
+	public long scan(long start, long end) {
+	    for (long base = start; base < end; base += BATCH_NONCES) {
+		int n = (int) Math.min(BATCH_NONCES, end - base);
+
+		for (int i = 0; i < n; i++) {
+		    nonces[i] = base + i;
+		}
+
+		int grid_size = (n + BatchKernel.BLOCK_SIZE - 1) / BatchKernel.BLOCK_SIZE;
+		int winner    = kernel.launch(grid_size, BatchKernel.BLOCK_SIZE, nonces, n);
+
+		if (winner >= 0) {
+		    return nonces[winner];
+		}
+	    }
+	    return -1;
+	}
+
+	public HashEngine.Scanner copy() {
+	    return new Scanner(header, target);
+	}
+    }
+}
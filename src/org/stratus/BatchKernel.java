@@ -0,0 +1,33 @@
+package org.stratus;
+
+// The batch model of gpu/JCudaBitMine, for hashing on any device: copy
+// the header and target to the device once per problem, then launch
+// the inversehash kernel over an array of nonces and read back the
+// index of a winner.
+//
+// As in JCudaBitMine, a launch is a grid of grid_size blocks of
+// block_size threads, and thread i (blockIdx * blockDim + threadIdx)
+// hashes nonces[i] if i < n.  Unlike the CUDA kernel, which lets any
+// winning thread write the output, a launch returns the lowest winning
+// index, so every device gives the same answer.
+//
+// Team Stratus.
+
+public interface BatchKernel {
+
+    public static final int BLOCK_SIZE = 256;   // threads per block, as JCudaBitMine launches
+
+    // Copy a problem to the device: the block header (the 76 byte prefix,
+    // or a full header whose nonce is ignored) and the 32 byte target, in
+    // bitcoin's display order.
+
+    void setProblem(byte[] header, byte[] target);
+
+    // Run the kernel over nonces[0 .. n), which are work numbers as in
+    // Sha256d.  Returns the lowest index whose double SHA-256 is less
+    // than the target, or -1 if there's none.
+
+    int launch(int grid_size, int block_size, long[] nonces, int n);
+
+    void close();
+}
@@ -1,19 +1,23 @@
 package org.stratus;
 
 import java.io.IOException;
-import java.security.*; 
 import java.util.*;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.*;
-import org.stratus.zk.*;
+import org.stratus.metrics.MetricsServer;
 
 
 // Hadoop Map-Reduce program for Bitcoin generation.  We use a
 // zookeeper directory for getting BitCoin problems, and for storing
 // the generated solutions.
+//
+// The map tasks also write what they find and how fast they hash to the
+// job's output, as MineRecords keyed by problem, and the reduce boils
+// the throughput records down, so each run leaves a SequenceFile log of
+// its solutions, finished ranges and hashrates in HDFS.
 
 // See the accompanying BitMine.Solutions for example test data, from 
 // previously successful bitcoin generaters.
@@ -22,126 +26,190 @@ import org.stratus.zk.*;
 
 public class BitMine {
 
-    private static final int INTERVAL_ITERATIONS = 5000000;  // tune this to perform one inner loop below
+    // job counters, as the job tracker shows them
+
+    public static enum Counters { HASHES, SOLUTIONS, RANGES_DONE }
+
+    public static class Map extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, MineRecord> {
+
+	private Miner  miner;
+	private String engine_name;
+	private String task;
+	private long   record_millis;
+
+	// The number of search threads per map task is "bitmine.threads", defaulting to one per core.
+	// We check in with zookeeper about every "bitmine.checkin.millis" milliseconds.  We hash with
+	// the "bitmine.engine" HashEngine; the default "auto" picks the fastest one on this node.
+	// If "bitmine.metrics.port" is set we serve our metrics there (0 for any free port).
+	// Once a task has searched its whole nonce range it does what "bitmine.when.done" says:
+	// "wait" for the next problem (the default), "lease" more of this one, or "exit".  Leases
+	// start at the end of the job's ranges, or 2^32 if that's higher, clear of every task's range.
+	// We write a throughput record every "bitmine.record.millis" milliseconds, and on each new problem.
+
+	@Override
+	public void configure(JobConf job) {
+	    HashEngine engine = HashEngines.select(job.get(HashEngines.PROPERTY, System.getProperty(HashEngines.PROPERTY, HashEngines.AUTO)));
+
+	    engine_name   = engine.getName();
+	    task          = job.get("mapred.task.id", "");
+	    record_millis = job.getLong("bitmine.record.millis", 60 * 1000);
+
+	    miner = new Miner(engine,
+			      job.getInt("bitmine.threads", Runtime.getRuntime().availableProcessors()),
+			      job.getLong("bitmine.checkin.millis", Miner.DEFAULT_CHECKIN_MILLIS));
+	    miner.setWhenDone(job.get("bitmine.when.done", Miner.WAIT));
+	    miner.setLeaseFrom(Math.max(1L << 32, job.getLong(NonceRangeInputFormat.END, 1L << 32)));
+
+	    int metrics_port = job.getInt(MetricsServer.PORT_PROPERTY, -1);
+	    if (metrics_port >= 0) {
+		try {
+		    miner.serveMetrics(metrics_port);
+		} catch (IOException e) {
+		    System.err.println("can't serve metrics on port " + metrics_port + ": " + e.getMessage());   // mine anyway
+		}
+	    }
+	}
 
-    public static class Map extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, IntWritable> {
+	@Override
+	public void close() throws IOException {
+	    miner.close();
+	}
 
 	// Example input text value:  "2504433986/192.168.2.1:2181"
 	// we split on "/" to get our initial nonce, and a zookeeper host address to contact for updates.
+	//
+	// The nonce can be a range, "2504000000-2505000000/192.168.2.1:2181", of nonces from the first
+	// up to (but not including) the second, as NonceRangeInputFormat writes; once we've searched it
+	// all we say so under /workers (see Miner).  Without an end we go on until the problem changes.
+	//
+	// Instead of an initial nonce the input can say "lease", e.g. "lease/192.168.2.1:2181", in which
+	// case we lease chunks of the nonce space from zookeeper one at a time (see RangeLeaser).
+	//
+	// The search loop itself is in Miner, which LocalMiner also runs outside of hadoop.
 	
-	public void map(LongWritable key, Text text, OutputCollector<LongWritable, IntWritable> output, Reporter reporter) throws IOException {
+	public void map(LongWritable key, Text text, OutputCollector<LongWritable, MineRecord> output, Reporter reporter) throws IOException {
 
 	    String parts[]       = text.toString().split("/");
-	    long   start_nonce   = Long.parseLong(parts[0], 10);        // each map task gets its own share of the search space (which is very large)
+	    boolean leasing      = parts[0].equals("lease");
+	    String range[]       = parts[0].split("-");
+	    long   start_nonce   = leasing ? 0 : Long.parseLong(range[0], 10);   // each map task gets its own share of the search space (which is very large)
+	    long   end_nonce     = (range.length > 1) ? Long.parseLong(range[1], 10) : Long.MAX_VALUE;
 	    String host_address  = parts[1];                            
-	    ZooKeeperCommunicator zooKeeperCommunicator = null;
-
-	    zooKeeperCommunicator = zooKeeperCommunicator.setUp(host_address, start_nonce);
-	    String config = zooKeeperCommunicator.getConfig();
 
-	    if (config == null) {   // we're shutting down in this case
-		return;
+	    OutputRecorder recorder = new OutputRecorder(output, reporter, engine_name, task, record_millis);
+	    miner.setRecorder(recorder);
+	    try {
+		miner.mine(host_address, start_nonce, end_nonce, leasing);
+	    } finally {
+		recorder.flush();
+		miner.setRecorder(null);
 	    }
-	    
-	    // We get two parts from the configuration: a block header, and a target difficulty
-	    //
-	    // "0100000081cd02ab7e569e8bcd9317e2fe99f2de44d49ab2b8851ba4a308000000000000e320b6c2fffc8d750423db8b1eb942ae710e951ed797f7affc8892b0f1fc122bc7f5d74df2b9441a"
-	    // "00000000000044b9f20000000000000000000000000000000000000000000000"
-
-	    String block_header  =  config.split("/")[0];
-	    String target_header =  config.split("/")[1];
-	    
-	    MessageDigest digest = initializeSha256(block_header);            // pre-load a digest object with data; we'll clone this for nonce computations
-	    BytesWritable target = hexStringToBytesWritable(target_header);   // our target: we want to generate a hash less than this value
-
-	    Date start  = new Date();
-	    long nonce  = start_nonce;
-	    byte[] data;
-	    int  interval_iterations;
-	    boolean solution_found = false;
-
-	    while (true) {
-
-		// we do the inner loop for several seconds, then check for changed configurations
-
-		interval_iterations = 0;
-		do {
-
-		    // if we've already found a solution, and the problem hasn't changed, then sleep a second and
-		    // skip the computation (but check for a new configuration later, and restart if we got one).
-
-		    if (solution_found) {
-			try { 
-			    Thread.sleep(1000);
-			    break;
-			} catch (InterruptedException e) {
-			    throw new IOException("Unexpected interrupt in sleep: " + e.getMessage());  // "Can't happen"
-			}
-		    }
-
-		    nonce++;
-		    interval_iterations++;
+	}
+    }
 
-		    try 
-			{ data = doubleSha((MessageDigest) digest.clone(), longToBytes(nonce)); } 
 
-		    catch (CloneNotSupportedException e) 
-			{ throw new IOException("can't clone prototype digest"); }
+    // Writes what a map task's Miner tells us to the job's output, keyed by problem.  Solutions and
+    // finished ranges go straight out; intervals are added up, and written every record_millis, or
+    // when the problem changes.  Each interval is progress, as far as the task tracker's concerned.
 
-		    BytesWritable candidate = new BytesWritable(data);
+    private static class OutputRecorder implements Miner.Recorder {
 
-		    if (candidate.compareTo(target) < 0) {
-			zooKeeperCommunicator.putSolution(candidate.toString().replaceAll(" ", "") + "/" + String.valueOf(nonce));  // saves as solution/nonce
-			zooKeeperCommunicator.putNonce(nonce);
-			solution_found = true;
-		    }
-		    
-		} while (interval_iterations < INTERVAL_ITERATIONS);
-	    	
-		// update our stats if we're still working on a problem
+	private final OutputCollector<LongWritable, MineRecord> output;
+	private final Reporter reporter;
+	private final String   engine_name;
+	private final String   task;
+	private final long     record_millis;
 
-		if (! solution_found) {
-		    zooKeeperCommunicator.putNonce(nonce);
-		}
+	private MineRecord throughput;        // since the last write, null if there's been nothing
+	private long       generation;        // of its problem
+	private long       began_millis;      // when it started
 
-		// check to see if:
-		//    1) our problem hash changed - then reset and start over
-		//    2) the problem hash was deleted - then exit
-
-		config = zooKeeperCommunicator.getConfig();
+	OutputRecorder(OutputCollector<LongWritable, MineRecord> output, Reporter reporter, String engine_name, String task, long record_millis) {
+	    this.output        = output;
+	    this.reporter      = reporter;
+	    this.engine_name   = engine_name;
+	    this.task          = task;
+	    this.record_millis = record_millis;
+	}
 
-		if (config == null) break;         // master program want's us to shut down
+	public void interval(long generation, long hashes, long nanos) throws IOException {
+	    reporter.progress();
+	    reporter.incrCounter(Counters.HASHES, hashes);
 
-		String new_block_header  = config.split("/")[0];
-		String new_target_header = config.split("/")[1];
+	    if (throughput != null && generation != this.generation) {
+		flush();
+	    }
+	    if (throughput == null) {
+		throughput      = MineRecord.throughput(engine_name, 0, 0, 0);
+		this.generation = generation;
+		began_millis    = System.currentTimeMillis();
+	    }
+	    throughput.add(MineRecord.throughput(engine_name, hashes, nanos, 1));
 
-		// we've been assigned a new problem:
+	    if (System.currentTimeMillis() - began_millis >= record_millis) {
+		flush();
+	    }
+	}
 
-		if (! new_block_header.equals(block_header))  {
+	public void solution(long generation, String config, long nonce, byte[] hash) throws IOException {
+	    reporter.incrCounter(Counters.SOLUTIONS, 1);
+	    output.collect(new LongWritable(generation), MineRecord.solution(task, config, nonce, hash));
+	}
 
-		    solution_found = false;
-		    block_header   = new_block_header;
+	public void rangeDone(long generation, long start_nonce, long end_nonce, long hashes) throws IOException {
+	    reporter.incrCounter(Counters.RANGES_DONE, 1);
+	    output.collect(new LongWritable(generation), MineRecord.range(task, start_nonce, end_nonce, hashes));
+	}
 
-		    digest = initializeSha256(block_header);
-		    target = hexStringToBytesWritable(new_target_header);
-		    nonce  = start_nonce;   
-		}
+	// write out the throughput we've added up, if any
 
+	void flush() throws IOException {
+	    if (throughput != null) {
+		output.collect(new LongWritable(generation), throughput);
+		throughput = null;
 	    }
 	}
     }
 
 
-    // reduce is never called; this is just an identity function for certain testing scenerios
+    // For each problem, the throughput records are added up per engine, and the solutions and
+    // finished ranges are passed along, once each: a map task that's run again (say, speculatively)
+    // reports the same ones.  Also the combiner, since throughput records add up in any order.
+
+    public static class Reduce extends MapReduceBase implements Reducer<LongWritable, MineRecord, LongWritable, MineRecord> {
+	public void reduce(LongWritable key, Iterator<MineRecord> values, OutputCollector<LongWritable, MineRecord> output, Reporter reporter) throws IOException {
+	    TreeMap<String, MineRecord> throughput = new TreeMap<String, MineRecord>();   // by engine
+	    Set<String>                 seen       = new HashSet<String>();                // solutions and ranges written
+
+	    while (values.hasNext()) {
+		MineRecord record = values.next();   // hadoop reuses this object for each value
 
-    public static class Reduce extends MapReduceBase implements Reducer<LongWritable, IntWritable, LongWritable, IntWritable> {
-	public void reduce(LongWritable key, Iterator<IntWritable> values, OutputCollector<LongWritable, IntWritable> output, Reporter reporter) throws IOException {
-	    output.collect(key, new IntWritable(values.next().get()));
+		if (record.kind == MineRecord.THROUGHPUT) {
+		    MineRecord total = throughput.get(record.engine);
+		    if (total == null) {
+			total = MineRecord.throughput(record.engine, 0, 0, 0);
+			total.timestamp = 0;
+			throughput.put(record.engine, total);
+		    }
+		    total.add(record);
+		} else if (seen.add(record.kind + ":" + record.nonce + ":" + record.end_nonce)) {
+		    output.collect(key, record);
+		}
+	    }
+
+	    for (MineRecord total : throughput.values()) {
+		output.collect(key, total);
+	    }
 	}
     }
 
-    // Three arguments:
-    // DFS input directory, DFS output directory, number of map tasks to start
+    // Three arguments, and optional fourth to seventh:
+    // DFS input directory, DFS output directory, number of map tasks to start, search threads per map task,
+    // hash engine (java, jca, batch, vector or auto), first nonce, end nonce
+    //
+    // Instead of an input directory, "zk://host:port" has the input made up by NonceRangeInputFormat:
+    // the nonces from first to end (by default all 2^32 of them) cut into one range per map task, each
+    // mined with the zookeeper at host:port.  The first and end nonces only apply to this input.
  
     public static void main(String[] args) throws Exception {
 	JobConf conf = new JobConf(BitMine.class);
@@ -150,88 +218,47 @@ public class BitMine {
 	conf.setBoolean("mapred.output.compress", false);
 
 	conf.setNumMapTasks(Integer.parseInt(args[2]));  // arg 3 - number of tasks (advisory)
+
+	if (args.length > 3) {
+	    conf.setInt("bitmine.threads", Integer.parseInt(args[3]));  // arg 4 - threads per task; defaults to the number of cores
+	}
+
+	if (args.length > 4) {
+	    conf.set(HashEngines.PROPERTY, args[4]);  // arg 5 - hash engine; defaults to the fastest on each node
+	}
+
 	conf.setNumReduceTasks(1);
  
 	conf.setOutputKeyClass(LongWritable.class);
-	conf.setOutputValueClass(IntWritable.class);
+	conf.setOutputValueClass(MineRecord.class);
  
 	conf.setMapperClass(Map.class);
 	conf.setCombinerClass(Reduce.class);
 	conf.setReducerClass(Reduce.class);
  
-	conf.setInputFormat(TextInputFormat.class);
-	conf.setOutputFormat(TextOutputFormat.class);
- 
-	FileInputFormat.setInputPaths(conf, new Path(args[0]));  // arg 1 - hdfs input filesystem 
-	FileOutputFormat.setOutputPath(conf, new Path(args[1])); // arg 2 - hdfs output filesystem (we never use this output)
- 
-	JobClient.runJob(conf);
-    }
-
-	
-    // Take a hex string, such as a representation of a SHA 256, and return as an array of bytes
-
-    private static byte[] hexStringToByteArray(String str) {
-	int len = str.length(); 
-	byte[] data = new byte[len / 2];
-	for (int i = 0; i < len; i += 2) {
-	    data[i / 2] = (byte) ((Character.digit(str.charAt(i), 16) << 4) + Character.digit(str.charAt(i+1), 16));
-	}
-	return data;
-    }
-		
-    // Take a hex string, such as a representation of a SHA 256, and return as a Hadoop BytesWritable
-
-    private static BytesWritable hexStringToBytesWritable(String hexstr) {
-	return new BytesWritable(hexStringToByteArray(hexstr));
-    }
-	
-    // Setup a SHA-256 object with initial data (block-header data).  We'll clone this for nonce computations.
-
-    private static MessageDigest initializeSha256(String match_data) throws IOException {
-	byte[] data = hexStringToByteArray(match_data);
-	MessageDigest digest = null;
-	try {
-	    digest = MessageDigest.getInstance("SHA-256");
-	    digest.reset();
-	    digest.update(data);
-	} catch (NoSuchAlgorithmException e) { 
-	    throw new IOException("can't initialize SHA-256");
-	}
-	return digest;
-    }
-	
-    // Convert a long to an array of bytes.
+	conf.setOutputFormat(SequenceFileOutputFormat.class);
 
-    private static byte[] longToBytes(long number) {
-	int len;
+	if (args[0].startsWith("zk://")) {
+	    conf.setInputFormat(NonceRangeInputFormat.class);
+	    conf.set(NonceRangeInputFormat.ZOOKEEPER, args[0].substring("zk://".length()));  // arg 1 - zookeeper to mine with
+	    conf.setInt(NonceRangeInputFormat.RANGES, Integer.parseInt(args[2]));           // one range per map task
 
-	if (number == 0) {
-	    len = 1;
+	    if (args.length > 5) {
+		conf.setLong(NonceRangeInputFormat.START, Long.parseLong(args[5]));  // arg 6 - first nonce; defaults to 0
+	    }
+	    if (args.length > 6) {
+		conf.setLong(NonceRangeInputFormat.END, Long.parseLong(args[6]));    // arg 7 - end nonce (exclusive); defaults to 2^32
+	    }
 	} else {
-	    len = (int) Math.ceil(Math.log10(number) / Math.log10(256) + 0.000000001);    // get number of places base 256
+	    conf.setInputFormat(TextInputFormat.class);
+	    FileInputFormat.setInputPaths(conf, new Path(args[0]));  // arg 1 - hdfs input filesystem 
 	}
 
-	byte[] data = new byte[len];
-
-	for (int i = 0; i < len; i++) {
-	    data[i] = (byte) (number % 256);
-	    number = number / 256;
-	}
-	return data;
+	FileOutputFormat.setOutputPath(conf, new Path(args[1])); // arg 2 - hdfs output filesystem, for the log of MineRecords
+ 
+	JobClient.runJob(conf);
     }
 
-    // Add final data to the SHA-256 object, then perform a second SHA-256 and
-    // return the swapped bytes from the completed digest.
-	
-    private static byte[] doubleSha(MessageDigest md, byte[] ba) {
-    	
-	md.update(ba);
-	byte [] digest = md.digest();			
-	md.reset();				
-	md.update(digest);
-	return swapBytes(md.digest());
-    }
 	
     // Dump array of bytes, for debugging
 	        	
@@ -244,18 +271,4 @@ public class BitMine {
 	}
 	return sb.toString();
     }
-
-    // Swap bytes end for end in place; returns the original, modified byte array.
-
-    private static byte[] swapBytes(byte[] data) {
-	int offset = data.length - 1;
-	byte tmp;
-    	
-	for (int i = 0; i < offset/2; i++) {
-	    tmp = data[i];
-	    data[i] = data[offset - i];
-	    data[offset - i] = tmp;
-	}
-	return data;
-    }
 }
@@ -1,7 +1,6 @@
 package org.stratus;
  
 import java.io.IOException;
-import java.security.*; 
 import java.util.*;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.fs.Path;
@@ -12,10 +11,10 @@ import org.apache.hadoop.util.*;
 
 // Hadoop Map-Reduce program for timing Bitcoin generation.  We do
 // NUMBER_OF_RUNS attempts to solve the inverse hash problem, and
-// return the number of milliseconds elapsed.  90% of the run time is
-// taken up by the SHA-256 computations; The overhead of manipulating
-// the data takes the rest. (These last include byte swapping,
-// coversion of byte arrays to a comparable object, etc.)
+// return the number of milliseconds elapsed.  The hashing is done by
+// the "bitmine.engine" HashEngine, so the engines can be timed against
+// each other on the cluster; the default "auto" picks the fastest one
+// on each node (see HashEngines).
 //
 // See the accompanying BitMine.Solutions for example test data, from 
 // previously successful bitcoin generating.
@@ -28,6 +27,13 @@ public class BitMineTime {
 
     public static class Map extends MapReduceBase implements Mapper<LongWritable, Text, LongWritable, Text> {
 
+	private HashEngine engine;
+
+	@Override
+	public void configure(JobConf job) {
+	    engine = HashEngines.select(job.get(HashEngines.PROPERTY, System.getProperty(HashEngines.PROPERTY, HashEngines.AUTO)));
+	}
+
 	/**
 	 * @param args
 	 * @throws IOException
@@ -43,29 +49,19 @@ public class BitMineTime {
 	    String parts[]       = text.toString().split(":");
 
 	    long start_nonce     = Long.parseLong(parts[0], 10);        // typically the start_nonce we're given for testing will be within NUMBER_OF_RUNS of a succesful nonce.
-	    MessageDigest digest = initializeSha256(parts[1]);          // pre-load a digest object with data; we'll clone this for nonce computations
-	    BytesWritable target = hexStringToBytesWritable(parts[2]);	// our target: we want to generate a hash less than this value
+	    HashTarget target    = new HashTarget(hexStringToByteArray(parts[2]));	// our target: we want to generate a hash less than this value
+	    HashEngine.Scanner scanner = engine.prepare(hexStringToByteArray(parts[1]), target);
 
 	    int  hits   = 0;
 	    Date start  = new Date();
 	    long nonce  = start_nonce;
+	    long end    = start_nonce + NUMBER_OF_RUNS;
 
-	    do {
-		byte[] data;
-
-		try 
-		    { data = doubleSha((MessageDigest) digest.clone(), longToBytes(nonce)); } 
-
-	    	catch (CloneNotSupportedException e) 
- 		    { throw new IOException("can't clone prototype digest"); }
-
-	    	BytesWritable candidate = new BytesWritable(data);
-
-	    	if (candidate.compareTo(target) < 0) hits++;
-
-	    	nonce++;
-	    	
-	    } while (nonce < start_nonce + NUMBER_OF_RUNS);
+	    while ((nonce = scanner.scan(nonce, end)) >= 0) {   // past 2^32 this rolls the timestamp; see Sha256d
+		hits++;
+		nonce++;
+	    }
+	    nonce = end;
 
 	    Date now = new Date();
 	    
@@ -121,60 +117,6 @@ public class BitMineTime {
 	return data;
     }
 		
-    // Take a hex string, such as a representation of a SHA 256, and return as a Hadoop BytesWritable
-
-    private static BytesWritable hexStringToBytesWritable(String hexstr) {
-	return new BytesWritable(hexStringToByteArray(hexstr));
-    }
-	
-    // Setup a SHA-256 object with initial data (block-header data).  We'll clone this for nonce computations.
-
-    private static MessageDigest initializeSha256(String match_data) throws IOException {
-	byte[] data = hexStringToByteArray(match_data);
-	MessageDigest digest = null;
-	try {
-	    digest = MessageDigest.getInstance("SHA-256");
-	    digest.reset();
-	    digest.update(data);
-	} catch (NoSuchAlgorithmException e) { 
-	    throw new IOException("can't initialize SHA-256");
-	}
-	return digest;
-    }
-	
-
-    // Convert a long to an array of bytes.  TODO: this seems expensive, is there a faster way?
-
-    private static byte[] longToBytes(long number) {
-	int len;
-
-	if (number == 0) {
-	    len = 1;
-	} else {
-	    len = (int) Math.ceil(Math.log10(number) / Math.log10(256) + 0.000000001);    // get number of places base 16
-	}
-
-	byte[] data = new byte[len];
-
-	for (int i = 0; i < len; i++) {
-	    data[i] = (byte) (number % 256);
-	    number = number / 256;
-	}
-	return data;
-    }
-
-    // Add final data to the SHA-256 object, then perform a second SHA-256 and
-    // return the swapped bytes from the completed digest.
-	
-    private static byte[] doubleSha(MessageDigest md, byte[] ba) {
-    	
-	md.update(ba);
-	byte [] digest = md.digest();			
-	md.reset();				
-	md.update(digest);
-	return swapBytes(md.digest());
-    }
-	
     // Dump array of bytes, for debugging
 	        	
     private static String dumpByteArray(byte[] ba) {
@@ -186,20 +128,5 @@ public class BitMineTime {
 	}
 	return sb.toString();
     }
-
-    // Swap bytes end for end in place; returns the original, modified byte array.
-
-    private static byte[] swapBytes(byte[] data) {
-	int offset = data.length - 1;
-	byte tmp;
-    	
-	for (int i = 0; i < offset/2; i++) {
-	    tmp = data[i];
-	    data[i] = data[offset - i];
-	    data[offset - i] = tmp;
-	}
-	return data;
-    }
 	
 }
-
@@ -0,0 +1,144 @@
+package org.stratus;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A BatchKernel that runs on the CPU, so nodes without a GPU can use
+// the same batched code path and launch geometry, and the batching can
+// be tested anywhere.
+//
+// The blocks of a launch are shared out between threads on a fork-join
+// pool, as a GPU shares them out between its multiprocessors.  Within a
+// block the threads are hashed Sha256dLanes.LANES at a time, in lanes.
+// The compare is a proper less-than against the target (HashTarget),
+// where the CUDA kernel has a strcmp.
+//
+// With one thread there's no pool, and launches run on the caller's
+// thread; that's how BatchEngine uses it, one kernel per search thread.
+// Then the lanes and their output are made once per problem, and a
+// launch allocates nothing.
+//
+// Team Stratus.
+
+public class CpuBatchKernel implements BatchKernel {
+
+    private static final int MIN_TASK_NONCES = 1 << 12;   // don't split launches into tasks smaller than this
+
+    private final ForkJoinPool pool;       // null if we run on the caller's thread
+    private Sha256dLanes       prototype;
+    private HashTarget         target;
+
+    private final AtomicInteger caller_winner = new AtomicInteger();   // for launches on the caller's thread
+    private Sha256dLanes        caller_lanes;
+    private final int[]         caller_hash   = new int[8 * Sha256dLanes.LANES];
+
+    public CpuBatchKernel(int threads) {
+	pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+    }
+
+    public void setProblem(byte[] header, byte[] target) {
+	this.prototype = new Sha256dLanes(header);
+	this.target    = new HashTarget(target);
+	if (pool == null) {
+	    caller_lanes = new Sha256dLanes(prototype);
+	}
+    }
+
+    public int launch(int grid_size, int block_size, long[] nonces, int n) {
+	if (prototype == null) {
+	    throw new IllegalStateException("launch before setProblem");
+	}
+	if ((long) grid_size * block_size < n || n > nonces.length) {
+	    throw new IllegalArgumentException("a grid of " + grid_size + " x " + block_size + " can't launch " + n + " of " + nonces.length + " nonces");
+	}
+
+	int winner;
+
+	if (pool == null) {
+	    caller_winner.set(Integer.MAX_VALUE);
+	    hashBlocks(block_size, nonces, n, caller_winner, 0, grid_size, caller_lanes, caller_hash);
+	    winner = caller_winner.get();
+	} else {
+	    Blocks blocks = new Blocks(block_size, nonces, n, new AtomicInteger(Integer.MAX_VALUE), 0, grid_size);
+	    pool.invoke(blocks);
+	    winner = blocks.winner.get();
+	}
+	return (winner == Integer.MAX_VALUE) ? -1 : winner;
+    }
+
+    public void close() {
+	if (pool != null) {
+	    pool.shutdownNow();
+	}
+    }
+
+    // blocks first (inclusive) to last (exclusive) of a launch
+
+    private class Blocks extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int           block_size;
+	private final long[]        nonces;
+	private final int           n;
+	private final AtomicInteger winner;     // lowest winning index so far
+	private final int           first;
+	private final int           last;
+
+	Blocks(int block_size, long[] nonces, int n, AtomicInteger winner, int first, int last) {
+	    this.block_size = block_size;
+	    this.nonces     = nonces;
+	    this.n          = n;
+	    this.winner     = winner;
+	    this.first      = first;
+	    this.last       = last;
+	}
+
+	@Override
+	protected void compute() {
+	    if (pool != null && last - first > 1 && (long) (last - first) * block_size > MIN_TASK_NONCES) {
+		int middle = first + (last - first) / 2;
+		invokeAll(new Blocks(block_size, nonces, n, winner, first, middle), new Blocks(block_size, nonces, n, winner, middle, last));
+		return;
+	    }
+
+	    hashBlocks(block_size, nonces, n, winner, first, last, new Sha256dLanes(prototype), new int[8 * Sha256dLanes.LANES]);
+	}
+    }
+
+    // hash blocks first (inclusive) to last (exclusive) with the given lanes and output
+
+    private void hashBlocks(int block_size, long[] nonces, int n, AtomicInteger winner, int first, int last, Sha256dLanes lanes, int[] hash) {
+	for (int block = first; block < last; block++) {
+	    for (int thread = 0; thread < block_size; thread += Sha256dLanes.LANES) {
+		int i = block * block_size + thread;
+
+		if (i >= n || i >= winner.get()) {
+		    return;   // past the end, or somebody has already won with a lower index
+		}
+
+		int count = Math.min(Sha256dLanes.LANES, Math.min(block_size - thread, n - i));
+		lanes.hash(nonces, i, count, hash);
+
+		for (int l = 0; l < count; l++) {
+		    if (target.isMet(hash, l, Sha256dLanes.LANES)) {
+			win(winner, i + l);
+			return;
+		    }
+		}
+	    }
+	}
+    }
+
+    // lower the winning index to index, unless a lower one is already in
+
+    private static void win(AtomicInteger winner, int index) {
+	while (true) {
+	    int current = winner.get();
+	    if (index >= current || winner.compareAndSet(current, index)) {
+		return;
+	    }
+	}
+    }
+}
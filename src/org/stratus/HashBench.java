@@ -0,0 +1,310 @@
+package org.stratus;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.hadoop.io.BytesWritable;
+
+// Micro-benchmarks for the hashing hot path, runnable on a laptop:
+//
+//    java org.stratus.HashBench [operations-per-round] [threads]
+//
+// BitMineTime and InverseShaTime need a Hadoop cluster and only give
+// wall-clock time per map task.  Here we time each piece of the search
+// loop on its own, in a single JVM, and report nanoseconds and bytes
+// allocated per operation.  The fixtures are the ten known blocks from
+// BitMine.Solutions (see Solution), used in rotation.
+//
+// The "legacy" operations are copies of the JCA based helpers that
+// BitMine used before Sha256d: initializeSha256 and clone, longToBytes,
+// doubleSha, swapBytes and the BytesWritable compare.  They're kept
+// here so we can compare the old and new paths on the same machine.
+// We also time the JCA digest without a midstate, hashing the whole
+// header from a reused buffer: on JVMs that compile SHA-256 to the
+// CPU's SHA or AVX2 instructions that can beat the pure Java midstate.
+//
+// Each operation runs WARMUP_ROUNDS rounds for the JIT, then
+// MEASURED_ROUNDS timed rounds; we print the mean and best ns/op.
+// Each HashEngine is timed scanning blocks of nonces, and NonceSearch
+// is timed with the one HashEngines selects ("bitmine.engine", or the
+// fastest).  Allocation comes from the JVM's per-thread allocation counter where
+// it's available (it's not counted for the multi-threaded search).
+// Results go into a volatile sink so the JIT can't discard the work.
+//
+// Team Stratus.
+
+public class HashBench {
+
+    private static final int WARMUP_ROUNDS   = 3;
+    private static final int MEASURED_ROUNDS = 5;
+
+    private static volatile long sink;
+
+    private static abstract class Op {
+	final String name;
+
+	Op(String name) {
+	    this.name = name;
+	}
+
+	// one operation, for iteration i; return something that depends on the result
+	abstract long run(long i) throws Exception;
+
+	// whether our allocation counter sees this operation's allocations
+	boolean countsAllocation() {
+	    return true;
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	long operations = (args.length > 0) ? Long.parseLong(args[0]) : 1000000;
+	int  threads    = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+	final int count = Solution.KNOWN.length;
+
+	final MessageDigest[] digests = new MessageDigest[count];
+	final Sha256d[]       shas    = new Sha256d[count];
+	final HashTarget[]    targets = new HashTarget[count];
+	final BytesWritable[] writable_targets = new BytesWritable[count];
+	final byte[][]        hashes  = new byte[count][];
+
+	for (int i = 0; i < count; i++) {
+	    Solution solution = Solution.KNOWN[i];
+	    digests[i] = initializeSha256(solution.getHeader());
+	    shas[i]    = new Sha256d(solution.getHeader());
+	    targets[i] = new HashTarget(solution.getTarget());
+	    writable_targets[i] = new BytesWritable(solution.getTarget());
+	    hashes[i]  = solution.getHash();
+	}
+
+	final int[] words = new int[8];
+	shas[0].hash(Solution.KNOWN[0].nonce, words);
+
+	final MessageDigest reused = MessageDigest.getInstance("SHA-256");
+	final byte[]        header = Sha256d.header(Solution.KNOWN[0].getHeader(), 0);
+	final byte[]        digest = new byte[32];
+	final byte[]        swapped = new byte[32];   // swapBytes works in place; keep the fixtures intact
+
+	Op[] ops = {
+	    new Op("legacy initializeSha256") {
+		long run(long i) throws Exception {
+		    return initializeSha256(Solution.KNOWN[(int) (i % count)].getHeader()).getDigestLength();
+		}
+	    },
+	    new Op("legacy clone") {
+		long run(long i) throws Exception {
+		    return ((MessageDigest) digests[(int) (i % count)].clone()).getDigestLength();
+		}
+	    },
+	    new Op("legacy longToBytes") {
+		long run(long i) {
+		    return longToBytes(2000000000L + i).length;
+		}
+	    },
+	    new Op("legacy doubleSha") {
+		long run(long i) throws Exception {
+		    int n = (int) (i % count);
+		    return doubleSha((MessageDigest) digests[n].clone(), longToBytes(Solution.KNOWN[n].nonce + i))[0];
+		}
+	    },
+	    new Op("legacy swapBytes") {
+		long run(long i) {
+		    System.arraycopy(hashes[(int) (i % count)], 0, swapped, 0, 32);
+		    return swapBytes(swapped)[0];
+		}
+	    },
+	    new Op("legacy BytesWritable compare") {
+		long run(long i) {
+		    int n = (int) (i % count);
+		    return new BytesWritable(hashes[n]).compareTo(writable_targets[n]);
+		}
+	    },
+	    new Op("JCA double SHA, reused buffers") {
+		long run(long i) throws Exception {
+		    int nonce = (int) (Solution.KNOWN[0].nonce + i);
+		    header[76] = (byte) nonce;
+		    header[77] = (byte) (nonce >>> 8);
+		    header[78] = (byte) (nonce >>> 16);
+		    header[79] = (byte) (nonce >>> 24);
+		    reused.update(header, 0, header.length);
+		    reused.digest(digest, 0, 32);
+		    reused.update(digest, 0, 32);
+		    reused.digest(digest, 0, 32);
+		    return digest[31];
+		}
+	    },
+	    new Op("Sha256d.hash") {
+		long run(long i) {
+		    int n = (int) (i % count);
+		    shas[n].hash(Solution.KNOWN[n].nonce + i, words);
+		    return words[7];
+		}
+	    },
+	    new Op("HashTarget.isMet") {
+		long run(long i) {
+		    words[7] ^= (int) i;
+		    return targets[(int) (i % count)].isMet(words) ? 1 : 0;
+		}
+	    },
+	    new Op("Sha256d.hash + HashTarget.isMet") {
+		long run(long i) {
+		    int n = (int) (i % count);
+		    shas[n].hash(Solution.KNOWN[n].nonce + i, words);
+		    return targets[n].isMet(words) ? 1 : 0;
+		}
+	    },
+	};
+
+	System.out.printf("%-40s %12s %12s %12s\n", "operation", "mean ns/op", "best ns/op", "bytes/op");
+
+	for (Op op : ops) {
+	    report(op, measure(op, operations));
+	}
+
+	// each hash engine, scanning a block of nonces at a time, per hash
+
+	final HashEngine.Scanner[] scanners = new HashEngine.Scanner[count];
+
+	for (HashEngine engine : HashEngines.all()) {
+	    for (int i = 0; i < count; i++) {
+		scanners[i] = engine.prepare(Solution.KNOWN[i].getHeader(), targets[i]);
+	    }
+	    final long block = 1 << 10;
+
+	    Op scan = new Op("HashEngine " + engine.getName() + " scan") {
+		    long run(long i) {
+			int n = (int) (i % count);
+			long start = Solution.KNOWN[n].nonce + 1 + i * block;
+			return scanners[n].scan(start, start + block);
+		    }
+		};
+	    double[] result = measure(scan, Math.max(1, operations / block));
+	    result[0] /= block;
+	    result[1] /= block;
+	    result[2] /= block;
+	    report(scan, result);
+	}
+
+	// the multi-threaded search with the selected engine, per hash over all threads
+
+	HashEngine engine = HashEngines.select();
+
+	for (int i = 0; i < count; i++) {
+	    scanners[i] = engine.prepare(Solution.KNOWN[i].getHeader(), targets[i]);
+	}
+
+	final NonceSearch search = new NonceSearch(threads);
+	final long range = operations * threads;
+
+	Op parallel = new Op("NonceSearch, " + engine.getName() + ", " + threads + " threads") {
+		long run(long i) {
+		    int n = (int) (i % count);
+		    long start = Solution.KNOWN[n].nonce + 1;   // just past the solution, so we search the whole range
+		    return search.search(scanners[n], start, start + range);
+		}
+		boolean countsAllocation() {
+		    return false;
+		}
+	    };
+	double[] result = measure(parallel, 1);
+	result[0] /= range;
+	result[1] /= range;
+	report(parallel, result);
+
+	search.close();
+    }
+
+    // Run an operation for the warmup and measured rounds; returns mean ns/op, best ns/op, and bytes/op.
+
+    private static double[] measure(Op op, long operations) throws Exception {
+	ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	com.sun.management.ThreadMXBean allocations = null;
+
+	if (op.countsAllocation() && threads instanceof com.sun.management.ThreadMXBean) {
+	    allocations = (com.sun.management.ThreadMXBean) threads;
+	}
+
+	long   thread_id = Thread.currentThread().getId();
+	long   result    = 0;
+	double total     = 0;
+	double best      = Double.MAX_VALUE;
+	long   allocated = 0;
+
+	for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+	    long bytes = (allocations == null) ? 0 : allocations.getThreadAllocatedBytes(thread_id);
+	    long start = System.nanoTime();
+
+	    for (long i = 0; i < operations; i++) {
+		result += op.run(i);
+	    }
+
+	    long elapsed = System.nanoTime() - start;
+
+	    if (round >= WARMUP_ROUNDS) {
+		double per_op = (double) elapsed / operations;
+		total += per_op;
+		best   = Math.min(best, per_op);
+		if (allocations != null) {
+		    allocated += allocations.getThreadAllocatedBytes(thread_id) - bytes;
+		}
+	    }
+	}
+	sink = result;
+
+	double bytes_per_op = (allocations == null) ? -1 : (double) allocated / (operations * MEASURED_ROUNDS);
+	return new double[] { total / MEASURED_ROUNDS, best, bytes_per_op };
+    }
+
+    private static void report(Op op, double[] result) {
+	String bytes = (result[2] < 0) ? "n/a" : String.format("%.1f", result[2]);
+	System.out.printf("%-40s %12.1f %12.1f %12s\n", op.name, result[0], result[1], bytes);
+    }
+
+    // The JCA based helpers, as BitMine had them before Sha256d.
+
+    private static MessageDigest initializeSha256(byte[] data) throws NoSuchAlgorithmException {
+	MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	digest.reset();
+	digest.update(data);
+	return digest;
+    }
+
+    private static byte[] longToBytes(long number) {
+	int len;
+
+	if (number == 0) {
+	    len = 1;
+	} else {
+	    len = (int) Math.ceil(Math.log10(number) / Math.log10(256) + 0.000000001);    // get number of places base 256
+	}
+
+	byte[] data = new byte[len];
+
+	for (int i = 0; i < len; i++) {
+	    data[i] = (byte) (number % 256);
+	    number = number / 256;
+	}
+	return data;
+    }
+
+    private static byte[] doubleSha(MessageDigest md, byte[] ba) {
+	md.update(ba);
+	byte [] digest = md.digest();
+	md.reset();
+	md.update(digest);
+	return swapBytes(md.digest());
+    }
+
+    private static byte[] swapBytes(byte[] data) {
+	int offset = data.length - 1;
+	byte tmp;
+
+	for (int i = 0; i < offset/2; i++) {
+	    tmp = data[i];
+	    data[i] = data[offset - i];
+	    data[offset - i] = tmp;
+	}
+	return data;
+    }
+}
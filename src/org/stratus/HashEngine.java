@@ -0,0 +1,41 @@
+package org.stratus;
+
+// A way of computing bitcoin's double SHA-256 over a range of nonces
+// and checking the results against a target.  NonceSearch splits the
+// work between threads; an engine just does the hashing.
+//
+// Engines are chosen by name with "bitmine.engine", in the JobConf or
+// as a system property; see HashEngines, which also checks each engine
+// against the known solutions before it's used.
+//
+// Team Stratus.
+
+public interface HashEngine {
+
+    // The engine's name, for "bitmine.engine".
+
+    String getName();
+
+    // Set up to search the given block header, either the 76 byte
+    // prefix or a full 80 byte header (whose nonce is ignored), for a
+    // hash that meets the target.
+
+    Scanner prepare(byte[] header, HashTarget target);
+
+    // A prepared problem.  A scanner is not thread safe; each thread
+    // searches with its own copy.
+
+    public interface Scanner {
+
+	// Hash work numbers start (inclusive) to end (exclusive); past
+	// 2^32 these roll the header's timestamp, as in Sha256d.  Returns
+	// the first one whose hash meets the target, or -1 if none does.
+
+	long scan(long start, long end);
+
+	// Another scanner for the same problem, sharing whatever was
+	// precomputed for it.
+
+	Scanner copy();
+    }
+}
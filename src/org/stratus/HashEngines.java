@@ -0,0 +1,171 @@
+package org.stratus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Choosing a HashEngine.
+//
+// The engine is named by "bitmine.engine", in the JobConf or as a
+// system property.  Whichever engine we choose is first checked against
+// the known solutions (see Solution): it has to find each block's nonce
+// scanning from a little before it, and find it again with the header's
+// timestamp one second back and the work number one roll ahead, which
+// exercises rolling the timestamp past 2^32.  An engine that gets any
+// of these wrong is never used.
+//
+// The default, "auto", self-tests every engine and then times each one
+// that passes for BENCHMARK_MILLIS on one thread, after as long again
+// to warm up the JIT, and picks the fastest.  Which engine wins depends
+// on the JVM and the CPU: the JCA engine is much faster where the JVM
+// compiles SHA-256 to the CPU's SHA instructions, and the pure Java one
+// is faster where it doesn't, so we measure rather than guess.
+//
+// Team Stratus.
+
+public class HashEngines {
+
+    public static final String PROPERTY = "bitmine.engine";
+    public static final String AUTO     = "auto";
+
+    private static final int  SELF_TEST_NONCES = 1 << 10;    // scan this far either side of each known nonce
+    private static final int  BENCHMARK_NONCES = 1 << 12;    // nonces per scan while timing an engine
+    private static final long BENCHMARK_MILLIS = 250;
+
+    // Every engine we have, in order of preference when there's a tie.
+
+    public static List<HashEngine> all() {
+	List<HashEngine> engines = new ArrayList<HashEngine>();
+	engines.add(new JavaEngine());
+	engines.add(new JcaEngine());
+	engines.add(new BatchEngine());
+	engines.add(new VectorEngine());
+	return engines;
+    }
+
+    // The engine named by the "bitmine.engine" system property, or the
+    // fastest correct one if that isn't set.
+
+    public static HashEngine select() {
+	return select(System.getProperty(PROPERTY, AUTO));
+    }
+
+    // The engine called name, or for "auto" the fastest correct one.
+    // Throws IllegalArgumentException for an unknown name, and
+    // IllegalStateException if the engine fails its self test.  Asking
+    // for "vector" where it can only run scalar code gets a warning on
+    // stderr, with the reason.
+
+    public static HashEngine select(String name) {
+	if (name.equals(AUTO)) {
+	    return fastest();
+	}
+
+	for (HashEngine engine : all()) {
+	    if (engine.getName().equals(name)) {
+		if (! selfTest(engine)) {
+		    throw new IllegalStateException("hash engine " + name + " failed its self test");
+		}
+		if (engine instanceof VectorEngine && ! VectorEngine.isVectorized()) {
+		    System.err.println("hash engine " + name + " was asked for, but it's running scalar code: " + VectorEngine.getFailure());
+		}
+		return engine;
+	    }
+	}
+	throw new IllegalArgumentException("unknown hash engine '" + name + "'");
+    }
+
+    // Check an engine against the known solutions; true if it gets them all right.
+
+    public static boolean selfTest(HashEngine engine) {
+	try {
+	    for (Solution solution : Solution.KNOWN) {
+		byte[] header = solution.getHeader();
+		long   nonce  = solution.nonce;
+
+		HashEngine.Scanner scanner = engine.prepare(header, new HashTarget(solution.getTarget()));
+
+		if (scanner.scan(Math.max(0, nonce - SELF_TEST_NONCES), nonce + SELF_TEST_NONCES) != nonce) {
+		    return false;
+		}
+		if (scanner.copy().scan(nonce, nonce + 1) != nonce) {
+		    return false;
+		}
+
+		// the same header, reached by rolling one second forward from a second earlier
+
+		byte[] earlier = header.clone();
+		putLittleEndianInt(earlier, 68, littleEndianInt(header, 68) - 1);
+		long   rolled  = (1L << 32) + nonce;
+
+		if (engine.prepare(earlier, new HashTarget(solution.getTarget())).scan(rolled - SELF_TEST_NONCES, rolled + 1) != rolled) {
+		    return false;
+		}
+	    }
+	    return true;
+	} catch (RuntimeException e) {
+	    return false;
+	}
+    }
+
+    // Hashes per second for one thread running the engine.
+
+    public static double benchmark(HashEngine engine) {
+	Solution solution = Solution.KNOWN[0];
+
+	HashEngine.Scanner scanner = engine.prepare(solution.getHeader(), new HashTarget(solution.getTarget()));
+	long work = solution.nonce + 1;   // there's no other solution for a long way past this one
+
+	for (int round = 0; round < 2; round++) {     // the first round is warmup
+	    long hashes = 0;
+	    long start  = System.nanoTime();
+	    long elapsed;
+
+	    do {
+		scanner.scan(work, work + BENCHMARK_NONCES);
+		work    += BENCHMARK_NONCES;
+		hashes  += BENCHMARK_NONCES;
+		elapsed  = System.nanoTime() - start;
+	    } while (elapsed < BENCHMARK_MILLIS * 1000000);
+
+	    if (round == 1) {
+		return hashes * 1e9 / elapsed;
+	    }
+	}
+	return 0;   // not reached
+    }
+
+    private static HashEngine fastest() {
+	HashEngine best      = null;
+	double     best_rate = 0;
+
+	for (HashEngine engine : all()) {
+	    if (! selfTest(engine)) {
+		System.out.printf("hash engine %s failed its self test; not using it\n", engine.getName());
+		continue;
+	    }
+	    double rate = benchmark(engine);
+	    System.out.printf("hash engine %s: %.0f hashes/sec per thread\n", engine.getName(), rate);
+
+	    if (rate > best_rate) {
+		best      = engine;
+		best_rate = rate;
+	    }
+	}
+
+	if (best == null) {
+	    throw new IllegalStateException("no hash engine passed its self test");
+	}
+	System.out.printf("using hash engine %s\n", best.getName());
+	return best;
+    }
+
+    private static int littleEndianInt(byte[] data, int offset) {
+	return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    private static void putLittleEndianInt(byte[] data, int offset, int value) {
+	for (int i = 0; i < 4; i++) {
+	    data[offset + i] = (byte) (value >>> (8 * i));
+	}
+    }
+}
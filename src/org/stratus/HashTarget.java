@@ -0,0 +1,85 @@
+package org.stratus;
+
+// A bitcoin target difficulty, prepared for comparing against the eight
+// words of a double SHA-256 as Sha256d.hash() leaves them.
+//
+// Targets arrive from /config as 32 bytes in bitcoin's display order
+// (most significant byte first), e.g.
+//
+//    "00000000000044b9f20000000000000000000000000000000000000000000000"
+//
+// while Sha256d leaves the digest in SHA-256 word order, which is byte
+// reversed with respect to that.  Rather than swap every digest, we keep
+// the target as words and swap at most the words we actually look at.
+//
+// Almost every candidate fails on its most significant word: any bit set
+// where the target has leading zeros makes the hash too big.  We
+// precompute a mask of those bits in digest byte order, so the usual
+// rejection is one AND against the last output word.
+//
+// Team Stratus.
+
+public final class HashTarget {
+
+    private final byte[] bytes;                  // the target as given, display order
+    private final int[]  words = new int[8];     // the target as eight words, most significant first
+    private final int    reject_mask;            // bits of hash[7] that must all be zero for hash < target
+
+    public HashTarget(byte[] target) {
+	if (target.length != 32) {
+	    throw new IllegalArgumentException("target must be 32 bytes, got " + target.length);
+	}
+	bytes = target.clone();
+
+	for (int i = 0; i < 8; i++) {
+	    words[i] = ((target[4 * i] & 0xff) << 24) | ((target[4 * i + 1] & 0xff) << 16) | ((target[4 * i + 2] & 0xff) << 8) | (target[4 * i + 3] & 0xff);
+	}
+
+	// the leading zero bits of the target's top word, moved into digest byte order
+
+	int zeros = Integer.numberOfLeadingZeros(words[0]);
+	int mask  = (zeros == 0) ? 0 : (-1 << (32 - zeros));
+	reject_mask = Integer.reverseBytes(mask);
+    }
+
+    // Is the hash, as left by Sha256d.hash(), strictly less than the target?
+
+    public boolean isMet(int[] hash) {
+	if ((hash[7] & reject_mask) != 0) {
+	    return false;
+	}
+	for (int i = 0; i < 8; i++) {
+	    int candidate = Integer.reverseBytes(hash[7 - i]);
+	    if (candidate != words[i]) {
+		return (candidate ^ Integer.MIN_VALUE) < (words[i] ^ Integer.MIN_VALUE);   // unsigned compare
+	    }
+	}
+	return false;
+    }
+
+    // The same for a hash kept across lanes, as Sha256dLanes leaves them:
+    // word j of the hash is hash[j * lanes + lane].
+
+    public boolean isMet(int[] hash, int lane, int lanes) {
+	if ((hash[7 * lanes + lane] & reject_mask) != 0) {
+	    return false;
+	}
+	for (int i = 0; i < 8; i++) {
+	    int candidate = Integer.reverseBytes(hash[(7 - i) * lanes + lane]);
+	    if (candidate != words[i]) {
+		return (candidate ^ Integer.MIN_VALUE) < (words[i] ^ Integer.MIN_VALUE);   // unsigned compare
+	    }
+	}
+	return false;
+    }
+
+    // The bits of a hash's last word that must all be zero for it to meet the target.
+
+    int rejectMask() {
+	return reject_mask;
+    }
+
+    public byte[] getBytes() {
+	return bytes.clone();
+    }
+}
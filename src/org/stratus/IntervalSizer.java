@@ -0,0 +1,56 @@
+package org.stratus;
+
+// Sizes search intervals so that a miner checks in with zookeeper at a
+// steady wall-clock cadence, whatever its hashrate.
+//
+// The right number of nonces per interval differs by orders of
+// magnitude between hash engines and instance types, so instead of a
+// hand-tuned constant we measure hashes/sec over each interval and size
+// the next one to take about target_millis.  The rate is smoothed, so
+// one interval that was cut short or slowed down by a GC doesn't swing
+// the next one too far.
+//
+// Team Stratus.
+
+public class IntervalSizer {
+
+    private static final long   MIN_INTERVAL = 1L << 16;    // a single leaf of a NonceSearch
+    private static final long   MAX_INTERVAL = 1L << 32;    // the whole nonce space
+    private static final double SMOOTHING    = 0.5;         // weight of the newest measurement
+
+    private final long target_millis;
+    private long       interval;
+    private double     rate;                                // hashes per second, smoothed; 0 until measured
+
+    public IntervalSizer(long target_millis, long initial_interval) {
+	this.target_millis = target_millis;
+	this.interval      = clamp(initial_interval);
+    }
+
+    // The number of nonces to search in the next interval.
+
+    public long getInterval() {
+	return interval;
+    }
+
+    // Record that we did hashes hashes in elapsed_nanos nanoseconds, and size the next interval from that.
+
+    public void record(long hashes, long elapsed_nanos) {
+	if (hashes <= 0 || elapsed_nanos <= 0) {
+	    return;
+	}
+
+	double measured = hashes * 1e9 / elapsed_nanos;
+
+	rate     = (rate == 0) ? measured : SMOOTHING * measured + (1 - SMOOTHING) * rate;
+	interval = clamp((long) (rate * target_millis / 1000));
+    }
+
+    public double getHashRate() {
+	return rate;
+    }
+
+    private static long clamp(long n) {
+	return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, n));
+    }
+}
@@ -0,0 +1,45 @@
+package org.stratus;
+
+// The pure Java hash engine: Sha256d's midstate and allocation free
+// double SHA-256, with the in-place HashTarget compare.  It doesn't
+// depend on the JVM's SHA-256 implementation, so it's the one to use
+// where that isn't compiled to the CPU's SHA instructions.
+//
+// Team Stratus.
+
+public class JavaEngine implements HashEngine {
+
+    public String getName() {
+	return "java";
+    }
+
+    public HashEngine.Scanner prepare(byte[] header, HashTarget target) {
+	return new Scanner(new Sha256d(header), target);
+    }
+
+    private static class Scanner implements HashEngine.Scanner {
+
+	private final Sha256d    sha;
+	private final HashTarget target;
+	private final int[]      hash = new int[8];
+
+	Scanner(Sha256d sha, HashTarget target) {
+	    this.sha    = sha;
+	    this.target = target;
+	}
+
+	public long scan(long start, long end) {
+	    for (long work = start; work < end; work++) {
+		sha.hash(work, hash);
+		if (target.isMet(hash)) {
+		    return work;
+		}
+	    }
+	    return -1;
+	}
+
+	public HashEngine.Scanner copy() {
+	    return new Scanner(new Sha256d(sha), target);
+	}
+    }
+}
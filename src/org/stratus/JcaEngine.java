@@ -0,0 +1,101 @@
+package org.stratus;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// The reference hash engine: the JVM's own SHA-256, via MessageDigest.
+//
+// We don't clone a MessageDigest holding the midstate, as BitMine used
+// to; a clone costs about as much as a compression, and allocates.
+// Instead each scanner keeps a complete 80 byte header that it writes
+// each nonce (and, past 2^32, the rolled timestamp) into, and digests
+// the whole header into a reused buffer.  That's one compression more
+// than Sha256d does per nonce, but on JVMs that compile SHA-256 down
+// to the CPU's SHA or AVX2 instructions it is still several times
+// faster than Sha256d, and it allocates nothing.
+//
+// Team Stratus.
+
+public class JcaEngine implements HashEngine {
+
+    public String getName() {
+	return "jca";
+    }
+
+    public HashEngine.Scanner prepare(byte[] header, HashTarget target) {
+	byte[] data = Sha256d.header(header, 0);
+	return new Scanner(data, littleEndianInt(data, 68), target);
+    }
+
+    private static class Scanner implements HashEngine.Scanner {
+
+	private final byte[]        header;                  // the full header; we change the timestamp and nonce
+	private final int           time;                    // the header's own timestamp
+	private final HashTarget    target;
+	private final MessageDigest md;
+	private final byte[]        digest = new byte[32];
+	private final int[]         hash   = new int[8];
+	private int                 roll;                    // how far the header's timestamp is rolled
+
+	// header is a full header whose timestamp may have been rolled from time
+
+	Scanner(byte[] header, int time, HashTarget target) {
+	    this.header = header.clone();
+	    this.time   = time;
+	    this.target = target;
+	    putLittleEndianInt(this.header, 68, time);
+	    try {
+		md = MessageDigest.getInstance("SHA-256");
+	    } catch (NoSuchAlgorithmException e) {
+		throw new IllegalStateException("no SHA-256 in this JVM: " + e.getMessage());   // every JVM is required to have it
+	    }
+	}
+
+	public long scan(long start, long end) {
+	    try {
+		for (long work = start; work < end; work++) {
+		    int r = (int) (work >>> 32);
+		    if (r != roll) {
+			roll = r;
+			putLittleEndianInt(header, 68, time + r);
+		    }
+		    putLittleEndianInt(header, 76, (int) work);
+
+		    md.update(header, 0, Sha256d.HEADER_LENGTH);
+		    md.digest(digest, 0, 32);
+		    md.update(digest, 0, 32);
+		    md.digest(digest, 0, 32);
+
+		    for (int i = 0; i < 8; i++) {
+			hash[i] = bigEndianInt(digest, 4 * i);
+		    }
+		    if (target.isMet(hash)) {
+			return work;
+		    }
+		}
+	    } catch (DigestException e) {
+		throw new IllegalStateException("can't digest a block header: " + e.getMessage());   // "Can't happen", the buffer is big enough
+	    }
+	    return -1;
+	}
+
+	public HashEngine.Scanner copy() {
+	    return new Scanner(header, time, target);
+	}
+    }
+
+    private static int bigEndianInt(byte[] data, int offset) {
+	return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int littleEndianInt(byte[] data, int offset) {
+	return Integer.reverseBytes(bigEndianInt(data, offset));
+    }
+
+    private static void putLittleEndianInt(byte[] data, int offset, int value) {
+	for (int i = 0; i < 4; i++) {
+	    data[offset + i] = (byte) (value >>> (8 * i));
+	}
+    }
+}
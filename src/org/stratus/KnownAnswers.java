@@ -0,0 +1,198 @@
+package org.stratus;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// Known answer checks of every way we have of hashing, against the ten
+// real blocks from BitMine.Solutions (see Solution):
+//
+//    java org.stratus.KnownAnswers [threads]
+//
+// Run this before deploying any change to the hashing path; it prints
+// a line per check, and exits with status 1 if any of them fail.  The
+// checks, for each block:
+//
+//    reference   - the JCA's SHA-256, twice, over the full 80 byte header gives the block's hash
+//    midstate    - Sha256d gives the same digest, from its midstate, and meets the target
+//    rolled      - with the timestamp a second back and the work number 2^32 on, Sha256d still does
+//    lanes       - Sha256dLanes gives the same words as Sha256d in every lane, with the
+//                  winning nonce in each lane position and a partly filled batch
+//    batch       - CpuBatchKernel finds the winner's index, on one thread and on several,
+//                  with whole and odd sized blocks
+//    engine      - each HashEngine passes HashEngines.selfTest(), and a targeted scan of a few
+//                  thousand nonces either side finds the nonce, and nothing just past it
+//    search      - NonceSearch on several threads finds the nonce with each engine
+//
+// The vector engine is checked whether or not the Vector API is there
+// (without it, it runs scalar code); we say which.
+//
+// Team Stratus.
+
+public class KnownAnswers {
+
+    private static final int SCAN_NONCES   = 1 << 12;    // either side of the nonce, for targeted scans
+    private static final int SEARCH_NONCES = 1 << 18;    // before the nonce, for NonceSearch
+
+    private static int passed;
+    private static int failed;
+
+    public static void main(String[] args) {
+	int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	System.out.printf("vector engine is %s\n", VectorEngine.isVectorized() ? "vectorized" : "scalar (no jdk.incubator.vector)");
+
+	for (int i = 0; i < Solution.KNOWN.length; i++) {
+	    Solution solution = Solution.KNOWN[i];
+	    String   block    = "block " + i + " (nonce " + solution.nonce + ")";
+	    byte[]   header   = solution.getHeader();
+	    byte[]   hash     = solution.getHash();
+
+	    check(block, "reference", Arrays.equals(reference(Sha256d.header(header, solution.nonce)), hash));
+	    check(block, "midstate", checkMidstate(solution));
+	    check(block, "rolled", checkRolled(solution));
+	    check(block, "lanes", checkLanes(solution));
+	    check(block, "batch, 1 thread", checkBatch(solution, 1, BatchKernel.BLOCK_SIZE));
+	    check(block, "batch, " + threads + " threads", checkBatch(solution, threads, BatchKernel.BLOCK_SIZE));
+	    check(block, "batch, odd blocks", checkBatch(solution, threads, 37));
+
+	    for (HashEngine engine : HashEngines.all()) {
+		check(block, "engine " + engine.getName(), checkScan(engine, solution));
+		check(block, "search " + engine.getName() + ", " + threads + " threads", checkSearch(engine, solution, threads));
+	    }
+	}
+
+	for (HashEngine engine : HashEngines.all()) {
+	    check("all blocks", "engine " + engine.getName() + " self test", HashEngines.selfTest(engine));
+	}
+
+	System.out.printf("%d passed, %d failed\n", passed, failed);
+	System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void check(String block, String what, boolean ok) {
+	if (ok) {
+	    passed++;
+	} else {
+	    failed++;
+	}
+	System.out.printf("%-4s %s: %s\n", ok ? "ok" : "FAIL", block, what);
+    }
+
+    // double SHA-256 of a full header with the JCA, in bitcoin's display order
+
+    private static byte[] reference(byte[] header) {
+	try {
+	    MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+	    byte[] digest = sha256.digest(sha256.digest(header));
+	    for (int i = 0; i < 16; i++) {
+		byte b = digest[i];
+		digest[i] = digest[31 - i];
+		digest[31 - i] = b;
+	    }
+	    return digest;
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException("no SHA-256: " + e.getMessage());
+	}
+    }
+
+    private static boolean checkMidstate(Solution solution) {
+	Sha256d    sha    = new Sha256d(solution.getHeader());
+	HashTarget target = new HashTarget(solution.getTarget());
+	int[]      words  = new int[8];
+
+	sha.hash(solution.nonce, words);
+	return Arrays.equals(sha.digest(solution.nonce), solution.getHash())
+	    && target.isMet(words)
+	    && Arrays.equals(new Sha256d(sha).digest(solution.nonce), solution.getHash());
+    }
+
+    private static boolean checkRolled(Solution solution) {
+	byte[] earlier = solution.getHeader().clone();
+	int    time    = (earlier[68] & 0xff) | ((earlier[69] & 0xff) << 8) | ((earlier[70] & 0xff) << 16) | ((earlier[71] & 0xff) << 24);
+	time--;
+	for (int i = 0; i < 4; i++) {
+	    earlier[68 + i] = (byte) (time >>> (8 * i));
+	}
+	long rolled = (1L << 32) + solution.nonce;
+
+	return Arrays.equals(new Sha256d(earlier).digest(rolled), solution.getHash())
+	    && Arrays.equals(Sha256d.header(earlier, rolled), Sha256d.header(solution.getHeader(), solution.nonce));
+    }
+
+    private static boolean checkLanes(Solution solution) {
+	int          lanes = Sha256dLanes.LANES;
+	Sha256d      sha   = new Sha256d(solution.getHeader());
+	Sha256dLanes batch = new Sha256dLanes(solution.getHeader());
+	int[]        out   = new int[8 * lanes];
+	int[]        words = new int[8];
+
+	for (int position = 0; position < lanes; position++) {
+	    long[] works = new long[lanes];
+	    for (int l = 0; l < lanes; l++) {
+		works[l] = solution.nonce - position + l;
+	    }
+
+	    for (int count = lanes; count >= lanes - 1; count--) {    // a full batch, and one short
+		if (position >= count) {
+		    continue;
+		}
+		batch.hash(works, 0, count, out);
+		for (int l = 0; l < count; l++) {
+		    sha.hash(works[l], words);
+		    for (int j = 0; j < 8; j++) {
+			if (out[j * lanes + l] != words[j]) {
+			    return false;
+			}
+		    }
+		}
+		if (! new HashTarget(solution.getTarget()).isMet(out, position, lanes)) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    private static boolean checkBatch(Solution solution, int threads, int block_size) {
+	CpuBatchKernel kernel = new CpuBatchKernel(threads);
+	try {
+	    kernel.setProblem(solution.getHeader(), solution.getTarget());
+
+	    int    n      = 8 * BatchKernel.BLOCK_SIZE + 5;
+	    long[] nonces = new long[n];
+	    int    winner = n - 7;
+	    for (int i = 0; i < n; i++) {
+		nonces[i] = solution.nonce - winner + i;
+	    }
+	    int grid_size = (n + block_size - 1) / block_size;
+
+	    if (kernel.launch(grid_size, block_size, nonces, n) != winner) {
+		return false;
+	    }
+	    return kernel.launch(grid_size, block_size, nonces, winner) == -1;   // everything before it misses
+	} finally {
+	    kernel.close();
+	}
+    }
+
+    private static boolean checkScan(HashEngine engine, Solution solution) {
+	HashEngine.Scanner scanner = engine.prepare(solution.getHeader(), new HashTarget(solution.getTarget()));
+	long nonce = solution.nonce;
+
+	return scanner.scan(Math.max(0, nonce - SCAN_NONCES), nonce + SCAN_NONCES) == nonce
+	    && scanner.scan(nonce, nonce + 1) == nonce
+	    && scanner.scan(nonce + 1, nonce + 1 + SCAN_NONCES) == -1
+	    && scanner.copy().scan(nonce - 3, nonce + 5) == nonce;
+    }
+
+    private static boolean checkSearch(HashEngine engine, Solution solution, int threads) {
+	NonceSearch search = new NonceSearch(threads);
+	try {
+	    HashEngine.Scanner scanner = engine.prepare(solution.getHeader(), new HashTarget(solution.getTarget()));
+	    return search.search(scanner, Math.max(0, solution.nonce - SEARCH_NONCES), solution.nonce + SCAN_NONCES) == solution.nonce;
+	} finally {
+	    search.close();
+	}
+    }
+}
@@ -0,0 +1,65 @@
+package org.stratus;
+
+import org.stratus.metrics.MetricsServer;
+
+// Bitcoin mining without hadoop: one long-lived JVM per node, searching
+// on its own pool of threads, and talking to zookeeper with the same
+// /config and /workers protocol as the BitMine map tasks (it shows up
+// under /workers as one more bc-N worker, and Controller can't tell the
+// difference).  It starts in a second or two rather than waiting on the
+// job tracker, and if a node is restarted we just start it again,
+// without resubmitting a job.
+//
+//    java org.stratus.LocalMiner hostname:port [start-nonce[-end-nonce] | lease] [threads] [checkin-millis]
+//
+// By default we lease nonce ranges from zookeeper (see RangeLeaser), so
+// any number of local miners and map tasks can share a problem without
+// being handed start nonces.  We exit when /config is removed.  Given
+// an end nonce, we search up to it and then wait for the next problem,
+// or with -Dbitmine.when.done=lease or exit, lease more or exit (see
+// Miner).
+//
+// The hash engine is the "bitmine.engine" system property, e.g.
+// -Dbitmine.engine=jca; by default we pick the fastest (see HashEngines).
+// With -Dbitmine.metrics.port=9100 we serve our metrics there, as text
+// for Prometheus (see MetricsServer); they're always readable over JMX.
+//
+// Team Stratus.
+
+public class LocalMiner {
+
+    public static void main(String[] args) throws Exception {
+
+	if (args.length < 1) {
+	    System.err.println("usage: java org.stratus.LocalMiner hostname:port [start-nonce[-end-nonce] | lease] [threads] [checkin-millis]");
+	    System.exit(1);
+	}
+
+	String  host_address   = args[0];
+	boolean leasing        = (args.length < 2) || args[1].equals("lease");
+	String  range[]        = leasing ? new String[] { "0" } : args[1].split("-");
+	long    start_nonce    = Long.parseLong(range[0], 10);
+	long    end_nonce      = (range.length > 1) ? Long.parseLong(range[1], 10) : Long.MAX_VALUE;
+	int     threads        = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+	long    checkin_millis = (args.length > 3) ? Long.parseLong(args[3]) : Miner.DEFAULT_CHECKIN_MILLIS;
+
+	Miner miner = new Miner(HashEngines.select(), threads, checkin_millis);
+	miner.setWhenDone(System.getProperty("bitmine.when.done", Miner.WAIT));
+	if (end_nonce != Long.MAX_VALUE) {
+	    miner.setLeaseFrom(Math.max(1L << 32, end_nonce));   // past our own range, as well as the nonce field
+	}
+
+	if (System.getProperty(MetricsServer.PORT_PROPERTY) != null) {
+	    miner.serveMetrics(Integer.parseInt(System.getProperty(MetricsServer.PORT_PROPERTY)));
+	}
+
+	System.out.printf("Mining with %d threads from zookeeper at %s, %s\n", threads, host_address,
+			  leasing ? "leasing nonce ranges" : "starting at nonce " + start_nonce);
+	try {
+	    miner.mine(host_address, start_nonce, end_nonce, leasing);
+	} finally {
+	    miner.close();
+	}
+	System.out.println("Config has been removed, or our nonce range is done; exiting");
+    }
+}
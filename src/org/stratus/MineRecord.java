@@ -0,0 +1,182 @@
+package org.stratus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+// What BitMine's map tasks write to the job's output, keyed by the
+// problem's generation (the zxid of its /config write; see
+// ZooKeeperCommunicator), so a run leaves a log of its results and its
+// performance in HDFS after the /workers znodes have been cleaned up.
+// There are three kinds:
+//
+//    SOLUTION     - a task found a solution: the task, the problem's "header/target" config,
+//                   the nonce (or work number) and the hash
+//    THROUGHPUT   - a task's hashing with one engine over a period: hashes, the nanoseconds
+//                   spent hashing, and how many intervals that was
+//    RANGE        - a task searched the whole of its nonce range, start to end, taking so
+//                   many hashes (see Miner)
+//
+// THROUGHPUT records for the same problem and engine add up, which is
+// how BitMine.Reduce (and the combiner) boils them down.  Every record
+// also has a timestamp, in milliseconds.  Counts are written as
+// variable length longs, so a throughput record takes a few dozen
+// bytes.  toString() gives a tab separated line, for "hadoop fs -text".
+//
+// Team Stratus.
+
+public class MineRecord implements Writable {
+
+    public static final byte SOLUTION   = 1;
+    public static final byte THROUGHPUT = 2;
+    public static final byte RANGE      = 3;
+
+    public byte   kind;
+    public long   timestamp;
+    public String task   = "";    // SOLUTION, RANGE
+    public String config = "";    // SOLUTION
+    public String engine = "";    // THROUGHPUT
+    public long   nonce;          // SOLUTION; the start nonce of a RANGE
+    public long   end_nonce;      // RANGE
+    public byte[] hash = new byte[32];   // SOLUTION
+    public long   hashes;         // THROUGHPUT, RANGE
+    public long   nanos;          // THROUGHPUT
+    public long   intervals;      // THROUGHPUT
+
+    public MineRecord() {
+    }
+
+    public static MineRecord solution(String task, String config, long nonce, byte[] hash) {
+	MineRecord record = new MineRecord(SOLUTION);
+	record.task   = task;
+	record.config = config;
+	record.nonce  = nonce;
+	record.hash   = hash.clone();
+	return record;
+    }
+
+    public static MineRecord throughput(String engine, long hashes, long nanos, long intervals) {
+	MineRecord record = new MineRecord(THROUGHPUT);
+	record.engine    = engine;
+	record.hashes    = hashes;
+	record.nanos     = nanos;
+	record.intervals = intervals;
+	return record;
+    }
+
+    public static MineRecord range(String task, long start_nonce, long end_nonce, long hashes) {
+	MineRecord record = new MineRecord(RANGE);
+	record.task      = task;
+	record.nonce     = start_nonce;
+	record.end_nonce = end_nonce;
+	record.hashes    = hashes;
+	return record;
+    }
+
+    private MineRecord(byte kind) {
+	this.kind      = kind;
+	this.timestamp = System.currentTimeMillis();
+    }
+
+    // fold another THROUGHPUT record for the same engine into this one
+
+    public void add(MineRecord other) {
+	hashes    += other.hashes;
+	nanos     += other.nanos;
+	intervals += other.intervals;
+	timestamp  = Math.max(timestamp, other.timestamp);
+    }
+
+    // hashes per second of hashing, for a THROUGHPUT record
+
+    public double getHashrate() {
+	return (nanos > 0) ? hashes * 1e9 / nanos : 0;
+    }
+
+    public void write(DataOutput out) throws IOException {
+	out.writeByte(kind);
+	out.writeLong(timestamp);
+
+	switch (kind) {
+	case SOLUTION:
+	    Text.writeString(out, task);
+	    Text.writeString(out, config);
+	    out.writeLong(nonce);
+	    out.write(hash, 0, 32);
+	    break;
+	case THROUGHPUT:
+	    Text.writeString(out, engine);
+	    WritableUtils.writeVLong(out, hashes);
+	    WritableUtils.writeVLong(out, nanos);
+	    WritableUtils.writeVLong(out, intervals);
+	    break;
+	case RANGE:
+	    Text.writeString(out, task);
+	    out.writeLong(nonce);
+	    out.writeLong(end_nonce);
+	    WritableUtils.writeVLong(out, hashes);
+	    break;
+	default:
+	    throw new IOException("unknown mine record kind " + kind);
+	}
+    }
+
+    public void readFields(DataInput in) throws IOException {
+	kind      = in.readByte();
+	timestamp = in.readLong();
+
+	switch (kind) {
+	case SOLUTION:
+	    task   = Text.readString(in);
+	    config = Text.readString(in);
+	    nonce  = in.readLong();
+	    in.readFully(hash, 0, 32);
+	    break;
+	case THROUGHPUT:
+	    engine    = Text.readString(in);
+	    hashes    = WritableUtils.readVLong(in);
+	    nanos     = WritableUtils.readVLong(in);
+	    intervals = WritableUtils.readVLong(in);
+	    break;
+	case RANGE:
+	    task      = Text.readString(in);
+	    nonce     = in.readLong();
+	    end_nonce = in.readLong();
+	    hashes    = WritableUtils.readVLong(in);
+	    break;
+	default:
+	    throw new IOException("unknown mine record kind " + kind);
+	}
+    }
+
+    public String toString() {
+	String when = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(timestamp));
+
+	switch (kind) {
+	case SOLUTION:
+	    return "solution\t" + when + "\t" + task + "\t" + nonce + "\t" + byteArrayToHexString(hash) + "\t" + config;
+	case THROUGHPUT:
+	    return String.format("throughput\t%s\t%s\t%d hashes\t%.3f sec\t%d intervals\t%.0f hashes/sec", when, engine, hashes, nanos / 1e9, intervals, getHashrate());
+	case RANGE:
+	    return "range\t" + when + "\t" + task + "\t" + nonce + "-" + end_nonce + "\t" + hashes + " hashes";
+	default:
+	    return "unknown\t" + when;
+	}
+    }
+
+    // two lower case hex digits per byte
+
+    private static String byteArrayToHexString(byte[] data) {
+	StringBuilder sb = new StringBuilder(data.length * 2);
+	for (int i = 0; i < data.length; i++) {
+	    sb.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+	    sb.append(Character.forDigit(data[i] & 0xf, 16));
+	}
+	return sb.toString();
+    }
+}
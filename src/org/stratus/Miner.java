@@ -0,0 +1,291 @@
+package org.stratus;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import org.stratus.metrics.Histogram;
+import org.stratus.metrics.MetricsRegistry;
+import org.stratus.metrics.MetricsServer;
+import org.stratus.zk.*;
+
+// The search loop of a bitcoin miner: get a problem from /config in
+// zookeeper, search nonces for it on all of our threads, publish our
+// progress and any solution under /workers, and start over when the
+// problem changes.  Returns when /config is removed.
+//
+// Each miner searches its own range of nonces, [start, end), or leases
+// chunks of the nonce space from zookeeper (see RangeLeaser).  When it
+// has searched the whole of its range for a problem, it says so in its
+// status (see WorkerStatus), with the hashes that took, so ranges don't
+// overlap and the controller can tell what's been covered.  It then
+// waits for the next problem, goes on to lease nonces of this one, or
+// returns, as setWhenDone() says.  Leases taken once a range is done
+// start past every fixed range (see setLeaseFrom()), so we never hash
+// nonces that are some other task's share.
+//
+// BitMine.Map runs this inside a hadoop map task, and LocalMiner runs
+// it in a plain JVM; neither needs anything from hadoop here.
+//
+// We count hashes per engine, and time each interval and each switch
+// to a new problem, from the /config watch firing to having a scanner
+// for the new problem (see MetricsRegistry).  A Recorder, if we're
+// given one, hears of each interval, solution and finished range too,
+// on the thread that called mine(); BitMine.Map writes them to the
+// job's output.
+//
+// Team Stratus.
+
+public class Miner {
+
+    public  static final long DEFAULT_CHECKIN_MILLIS = 2000;     // how often we want to check in with zookeeper
+    private static final int  INITIAL_INTERVAL       = 1 << 20;  // nonces in the first interval, before we've measured our hashrate
+    private static final long FLUSH_MILLIS           = 5000;     // how long we give our last status to be written, before returning
+
+    // what to do once our nonce range is done, until the problem changes
+
+    public  static final String WAIT  = "wait";    // nothing (the default)
+    public  static final String LEASE = "lease";   // lease more of the problem's nonces
+    public  static final String EXIT  = "exit";    // return from mine()
+
+    private final HashEngine  engine;
+    private final NonceSearch search;
+    private final ProblemFeed feed;            // scanners for the problems queued to follow this one
+    private final long        checkin_millis;
+
+    private final LongAdder engine_hashes;
+    private final Histogram interval_times  = MetricsRegistry.get().histogram("bitmine_interval_seconds");
+    private final Histogram switch_times    = MetricsRegistry.get().histogram("bitmine_problem_switch_seconds");
+    private MetricsServer   metrics_server;
+    private String          when_done       = WAIT;
+    private long            lease_from      = 1L << 32;   // the first nonce we lease once our range is done
+    private Recorder        recorder;
+
+    // Told of our work as we go, each with the generation of the problem it was for (see
+    // ZooKeeperCommunicator.getProblemGeneration()).
+
+    public interface Recorder {
+	void interval(long generation, long hashes, long nanos) throws IOException;
+	void solution(long generation, String config, long nonce, byte[] hash) throws IOException;
+	void rangeDone(long generation, long start_nonce, long end_nonce, long hashes) throws IOException;
+    }
+
+    // Intervals are sized from our measured hashrate so that we check in
+    // with zookeeper about every checkin_millis milliseconds.
+
+    public Miner(HashEngine engine, int threads, long checkin_millis) {
+	this.engine         = engine;
+	this.search         = new NonceSearch(threads);
+	this.feed           = new ProblemFeed(engine);
+	this.checkin_millis = checkin_millis;
+	this.engine_hashes  = MetricsRegistry.get().counter("bitmine_hashes_total", "engine", engine.getName());
+    }
+
+    // Serve our metrics over HTTP on the given port, 0 for any free one (see MetricsServer).
+
+    public void serveMetrics(int port) throws IOException {
+	metrics_server = new MetricsServer(port);
+	System.out.printf("metrics at http://localhost:%d/metrics\n", metrics_server.getPort());
+    }
+
+    // What to do once we've searched our whole nonce range: WAIT, LEASE or EXIT.
+
+    public void setWhenDone(String when_done) {
+	if (! when_done.equals(WAIT) && ! when_done.equals(LEASE) && ! when_done.equals(EXIT)) {
+	    throw new IllegalArgumentException("when done, can't '" + when_done + "': expected wait, lease or exit");
+	}
+	this.when_done = when_done;
+    }
+
+    // Once our range is done, lease nonces from here on: the end of the fixed ranges handed out,
+    // or past them.  By default that's 2^32, the end of the nonce field, beyond which we roll the
+    // header's timestamp.
+
+    public void setLeaseFrom(long nonce) {
+	this.lease_from = nonce;
+    }
+
+    public void setRecorder(Recorder recorder) {
+	this.recorder = recorder;
+    }
+
+    public void close() {
+	search.close();
+	feed.close();
+	if (metrics_server != null) {
+	    metrics_server.stop();
+	}
+    }
+
+    // Mine with the zookeeper at host_address, searching nonces start_nonce up to end_nonce of each
+    // problem; or if leasing, taking chunks of the nonce space from zookeeper one at a time (see
+    // RangeLeaser).  Long.MAX_VALUE for end_nonce goes on for as long as the problem does.
+
+    public void mine(String host_address, long start_nonce, long end_nonce, boolean leasing) throws IOException {
+
+	if (! leasing && end_nonce <= start_nonce) {
+	    throw new IllegalArgumentException("no nonces from " + start_nonce + " to " + end_nonce);
+	}
+
+	ZooKeeperCommunicator zooKeeperCommunicator = null;
+
+	zooKeeperCommunicator = zooKeeperCommunicator.setUp(host_address, start_nonce);
+	int    generation = zooKeeperCommunicator.getConfigGeneration();    // read before the config, so we can't miss a change
+	String config     = zooKeeperCommunicator.getConfig();
+
+	if (config == null) {   // we're shutting down in this case
+	    return;
+	}
+
+	// We get two parts from the configuration: a block header, and a target difficulty
+	//
+	// "0100000081cd02ab7e569e8bcd9317e2fe99f2de44d49ab2b8851ba4a308000000000000e320b6c2fffc8d750423db8b1eb942ae710e951ed797f7affc8892b0f1fc122bc7f5d74df2b9441a"
+	// "00000000000044b9f20000000000000000000000000000000000000000000000"
+
+	String block_header  =  config.split("/")[0];
+
+	int queue_generation = zooKeeperCommunicator.getQueueGeneration() - 1;
+	HashEngine.Scanner scanner = feed.get(config);           // e.g. computes the midstate for the unchanging first 64 bytes of the header
+
+	search.watch(zooKeeperCommunicator, generation);   // abandon an interval as soon as /config changes
+
+	long nonce  = start_nonce - 1;                   // the last nonce we've searched
+	boolean leasing_now = leasing;                    // we may go on to lease, once our own range is done
+	long range_end = leasing ? 0 : end_nonce;         // our share stops here; when leasing, at the end of the leased chunk
+	long first_chunk = 0;                             // the lowest chunk we'll lease
+	long range_hashes = search.getHashes();           // when we started on our range, to count the hashes it takes
+	boolean solution_found = false;
+	boolean range_done     = false;
+
+	IntervalSizer sizer = new IntervalSizer(checkin_millis, INITIAL_INTERVAL);
+
+	while (true) {
+
+	    // if we've already found a solution, or searched all our nonces, and the problem hasn't
+	    // changed, then wait for /config to change (but check for a new configuration below
+	    // anyway, and restart if we got one).  Otherwise we search the next interval on all of
+	    // our threads, which takes about checkin_millis unless /config changes first.
+
+	    if (solution_found || range_done) {
+		try {
+		    zooKeeperCommunicator.awaitConfigChange(generation, 1000);
+		    zooKeeperCommunicator.flushProgress(0);   // resends our status, if a lost connection held it up
+		} catch (InterruptedException e) {
+		    throw new IOException("Unexpected interrupt in wait: " + e.getMessage());  // "Can't happen"
+		}
+	    } else {
+		if (leasing_now && nonce + 1 >= range_end) {
+		    long chunk = zooKeeperCommunicator.leaseRange(first_chunk);
+		    nonce      = chunk * RangeLeaser.CHUNK_NONCES - 1;
+		    range_end  = nonce + 1 + RangeLeaser.CHUNK_NONCES;
+		}
+
+		long interval = Math.min(sizer.getInterval(), range_end - (nonce + 1));
+		long hashes   = search.getHashes();
+		long began    = System.nanoTime();
+
+		long found = search.search(scanner, nonce + 1, nonce + 1 + interval);
+
+		long done    = search.getHashes() - hashes;
+		long elapsed = System.nanoTime() - began;
+
+		sizer.record(done, elapsed);
+		engine_hashes.add(done);
+		interval_times.observeSince(began);
+		if (recorder != null) {
+		    recorder.interval(zooKeeperCommunicator.getProblemGeneration(), done, elapsed);
+		}
+
+		if (found >= 0) {
+		    nonce = found;
+		    byte[] hash = new Sha256d(hexStringToByteArray(block_header)).digest(nonce);
+		    zooKeeperCommunicator.putSolution(hash, nonce);   // written right away, with our progress
+		    solution_found = true;
+		    if (recorder != null) {
+			recorder.solution(zooKeeperCommunicator.getProblemGeneration(), config, nonce, hash);
+		    }
+		} else if (zooKeeperCommunicator.getConfigGeneration() == generation) {
+		    nonce += interval;
+		    if (leasing_now && nonce + 1 >= range_end) {
+			zooKeeperCommunicator.completeRange();
+		    } else if (nonce + 1 >= range_end) {
+			zooKeeperCommunicator.putRangeDone(range_end, search.getHashes() - range_hashes);
+			range_done = true;
+			if (recorder != null) {
+			    recorder.rangeDone(zooKeeperCommunicator.getProblemGeneration(), start_nonce, range_end, search.getHashes() - range_hashes);
+			}
+
+			if (when_done.equals(EXIT)) {
+			    try {
+				zooKeeperCommunicator.flushProgress(FLUSH_MILLIS);
+			    } catch (InterruptedException e) {
+				throw new IOException("Unexpected interrupt in flush: " + e.getMessage());  // "Can't happen"
+			    }
+			    return;
+			} else if (when_done.equals(LEASE)) {
+			    range_done  = false;
+			    leasing_now = true;
+			    range_end   = 0;   // gets us a chunk on the next time round
+			    first_chunk = (lease_from + RangeLeaser.CHUNK_NONCES - 1) / RangeLeaser.CHUNK_NONCES;
+			}
+		    }
+		}   // otherwise the interval was cut short by a change to /config, and we don't count it
+	    }
+
+	    // update our stats if we're still working on a problem
+
+	    if (! solution_found && ! range_done) {
+		zooKeeperCommunicator.putNonce(nonce, search.getHashes());
+	    }
+
+	    // get ready for the problems queued up next; the feed makes their scanners on its own thread
+
+	    if (zooKeeperCommunicator.getQueueGeneration() != queue_generation) {
+		queue_generation = zooKeeperCommunicator.getQueueGeneration();
+		feed.refresh(zooKeeperCommunicator.getQueuedProblems(), config);
+	    }
+
+	    // check to see if:
+	    //    1) our problem hash changed - then reset and start over
+	    //    2) the problem hash was deleted - then exit
+	    //
+	    // our watch on /config tells us if either might have happened, so we only go back to zookeeper then.
+
+	    if (zooKeeperCommunicator.getConfigGeneration() == generation) continue;
+
+	    generation = zooKeeperCommunicator.getConfigGeneration();
+	    config     = zooKeeperCommunicator.getConfig();
+	    search.watch(zooKeeperCommunicator, generation);
+
+	    if (config == null) break;         // master program want's us to shut down
+
+	    String new_block_header  = config.split("/")[0];
+
+	    // we've been assigned a new problem:
+
+	    if (! new_block_header.equals(block_header))  {
+
+		solution_found = false;
+		range_done     = false;
+		block_header   = new_block_header;
+
+		scanner = feed.get(config);   // usually made ahead of time, from the queue
+		switch_times.observeSince(zooKeeperCommunicator.getConfigChangeNanos());
+		nonce  = start_nonce - 1;
+		leasing_now  = leasing;
+		range_end    = leasing ? 0 : end_nonce;   // when leasing, this gets us a chunk of the new problem
+		first_chunk  = 0;
+		range_hashes = search.getHashes();
+	    }
+	}
+    }
+
+    // Take a hex string, such as a representation of a SHA 256, and return as an array of bytes
+
+    private static byte[] hexStringToByteArray(String str) {
+	int len = str.length();
+	byte[] data = new byte[len / 2];
+	for (int i = 0; i < len; i += 2) {
+	    data[i / 2] = (byte) ((Character.digit(str.charAt(i), 16) << 4) + Character.digit(str.charAt(i+1), 16));
+	}
+	return data;
+    }
+}
@@ -0,0 +1,108 @@
+package org.stratus;
+
+import java.io.IOException;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+// Input for BitMine that's made up from the JobConf rather than read
+// from files: the nonces from "bitmine.range.start" (default 0) up to
+// "bitmine.range.end" (default 2^32, the whole nonce field) are cut into
+// "bitmine.ranges" splits (default, the number of map tasks asked for),
+// each to be mined with the zookeeper at "bitmine.zookeeper".
+//
+// The splits differ in size by at most one nonce, and between them
+// cover the range exactly, with no gaps and no overlaps, so running more
+// tasks is a matter of changing a number.  Each split is read as one
+// record, keyed by its start nonce, whose value is the same kind of
+// line the hand made input files have, "start-end/host:port", so
+// BitMine.Map reads either, and searches just that range.
+//
+// Team Stratus.
+
+public class NonceRangeInputFormat implements InputFormat<LongWritable, Text> {
+
+    public static final String RANGES    = "bitmine.ranges";
+    public static final String START     = "bitmine.range.start";
+    public static final String END       = "bitmine.range.end";
+    public static final String ZOOKEEPER = "bitmine.zookeeper";
+
+    public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+	long   start = job.getLong(START, 0);
+	long   end   = job.getLong(END, 1L << 32);
+	int    count = job.getInt(RANGES, numSplits);
+	String host  = job.get(ZOOKEEPER);
+
+	if (host == null) {
+	    throw new IOException("no zookeeper for the nonce ranges: set " + ZOOKEEPER);
+	}
+	if (end <= start || count < 1) {
+	    throw new IOException("can't split nonces " + start + " to " + end + " into " + count + " ranges");
+	}
+
+	// the first span % count splits get one nonce more than the rest
+
+	long span      = end - start;
+	count          = (int) Math.min(count, span);   // no empty splits
+	long size      = span / count;
+	long remainder = span % count;
+
+	InputSplit[] splits = new InputSplit[count];
+	long         from   = start;
+	for (int i = 0; i < count; i++) {
+	    long to   = from + size + ((i < remainder) ? 1 : 0);
+	    splits[i] = new NonceRangeSplit(from, to, host);
+	    from      = to;
+	}
+	return splits;
+    }
+
+    public RecordReader<LongWritable, Text> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+	return new Reader((NonceRangeSplit) split);
+    }
+
+    // one record per split
+
+    private static class Reader implements RecordReader<LongWritable, Text> {
+
+	private final NonceRangeSplit split;
+	private boolean               done;
+
+	Reader(NonceRangeSplit split) {
+	    this.split = split;
+	}
+
+	public boolean next(LongWritable key, Text value) {
+	    if (done) {
+		return false;
+	    }
+	    key.set(split.getStart());
+	    value.set(split.toString());
+	    done = true;
+	    return true;
+	}
+
+	public LongWritable createKey() {
+	    return new LongWritable();
+	}
+
+	public Text createValue() {
+	    return new Text();
+	}
+
+	public long getPos() {
+	    return done ? 1 : 0;
+	}
+
+	public float getProgress() {
+	    return done ? 1 : 0;
+	}
+
+	public void close() {
+	}
+    }
+}
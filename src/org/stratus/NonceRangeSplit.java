@@ -0,0 +1,68 @@
+package org.stratus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.InputSplit;
+
+// One map task's share of the nonce space: nonces start (inclusive) to
+// end (exclusive), to be mined with the zookeeper at host.  There's no
+// data to be near, so a split has no locations, and the job tracker can
+// run it anywhere.  See NonceRangeInputFormat.
+//
+// Team Stratus.
+
+public class NonceRangeSplit implements InputSplit {
+
+    private long   start;
+    private long   end;
+    private String host;
+
+    public NonceRangeSplit() {
+    }
+
+    public NonceRangeSplit(long start, long end, String host) {
+	this.start = start;
+	this.end   = end;
+	this.host  = host;
+    }
+
+    public long getStart() {
+	return start;
+    }
+
+    public long getEnd() {
+	return end;
+    }
+
+    public String getHost() {
+	return host;
+    }
+
+    // the number of nonces, which the job tracker takes as the size of the split
+
+    public long getLength() {
+	return end - start;
+    }
+
+    public String[] getLocations() {
+	return new String[0];
+    }
+
+    public void write(DataOutput out) throws IOException {
+	out.writeLong(start);
+	out.writeLong(end);
+	Text.writeString(out, host);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+	start = in.readLong();
+	end   = in.readLong();
+	host  = Text.readString(in);
+    }
+
+    public String toString() {
+	return start + "-" + end + "/" + host;
+    }
+}
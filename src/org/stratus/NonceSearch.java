@@ -0,0 +1,138 @@
+package org.stratus;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.stratus.metrics.MetricsRegistry;
+import org.stratus.zk.ZooKeeperCommunicator;
+
+// Multi-threaded search of a range of nonces, so that one map task can
+// keep every core on a node busy with a single JVM and a single
+// zookeeper session.
+//
+// A range is split in halves down to LEAF_NONCES sized sub-ranges and
+// run on a fork-join pool; idle threads steal the unscanned halves of
+// busy ones, so the threads finish together even if some are slowed
+// down.  Each leaf hashes with its own copy of the prototype scanner
+// from a HashEngine, which shares whatever the engine precomputed for
+// the problem (for Sha256d, the midstate).
+//
+// The first thread to find a solution stops all the others, which
+// check for that every CHECK_NONCES hashes.  The threads stop the same
+// way when a watched /config generation changes, so a new problem is
+// picked up within milliseconds.  The number of hashes done is
+// aggregated across all of the threads, in LongAdders so the threads
+// don't contend for one counter; each thread also counts its own, as
+// bitmine_thread_hashes_total (see MetricsRegistry), looked up once per
+// thread and kept in a ThreadLocal, off the hot path.
+//
+// Team Stratus.
+
+public class NonceSearch {
+
+    private static final int LEAF_NONCES  = 1 << 16;   // don't split sub-ranges smaller than this
+    private static final int CHECK_NONCES = 1 << 12;   // how often a thread checks whether it should stop
+
+    private final ForkJoinPool pool;
+    private final LongAdder    hashes = new LongAdder();
+    private final AtomicLong   found  = new AtomicLong(-1);
+    private volatile boolean   stopped;
+
+    private final ThreadLocal<LongAdder> thread_hashes = new ThreadLocal<LongAdder>() {
+	    protected LongAdder initialValue() {
+		return MetricsRegistry.get().counter("bitmine_thread_hashes_total", "thread", Thread.currentThread().getName());
+	    }
+	};
+
+    private ZooKeeperCommunicator communicator;   // if set, stop searching when /config moves past generation
+    private int                   generation;
+
+    public NonceSearch(int threads) {
+	pool = new ForkJoinPool(threads);
+    }
+
+    // Search nonces start (inclusive) to end (exclusive) for one whose
+    // hash meets the target.  Returns that nonce, or -1 if there was
+    // none in the range.  Blocks until the search is done.
+
+    public long search(HashEngine.Scanner prototype, long start, long end) {
+	found.set(-1);
+	stopped = false;
+	pool.invoke(new Scan(prototype, start, end));
+	return found.get();
+    }
+
+    // Abandon searches as soon as the communicator's /config generation
+    // is no longer the given one, i.e. the problem we're working on has
+    // changed or been removed.
+
+    public void watch(ZooKeeperCommunicator communicator, int generation) {
+	this.communicator = communicator;
+	this.generation   = generation;
+    }
+
+    // Total number of nonces hashed by all threads, over all searches.
+
+    public long getHashes() {
+	return hashes.sum();
+    }
+
+    public int getThreads() {
+	return pool.getParallelism();
+    }
+
+    public void close() {
+	pool.shutdownNow();
+    }
+
+    private boolean stale() {
+	return communicator != null && communicator.getConfigGeneration() != generation;
+    }
+
+    private class Scan extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final HashEngine.Scanner prototype;
+	private final long               start;
+	private final long               end;
+
+	Scan(HashEngine.Scanner prototype, long start, long end) {
+	    this.prototype = prototype;
+	    this.start     = start;
+	    this.end       = end;
+	}
+
+	@Override
+	protected void compute() {
+	    if (stopped || stale()) {
+		return;
+	    }
+
+	    if (end - start > LEAF_NONCES) {
+		long middle = start + (end - start) / 2;
+		invokeAll(new Scan(prototype, start, middle), new Scan(prototype, middle, end));
+		return;
+	    }
+
+	    HashEngine.Scanner scanner = prototype.copy();
+	    LongAdder thread_hashes = NonceSearch.this.thread_hashes.get();
+
+	    for (long chunk = start; chunk < end && ! stopped && ! stale(); chunk += CHECK_NONCES) {
+		long limit = Math.min(chunk + CHECK_NONCES, end);
+		long nonce = scanner.scan(chunk, limit);   // past 2^32 this rolls the timestamp; see Sha256d
+
+		if (nonce >= 0) {
+		    found.compareAndSet(-1, nonce);
+		    stopped = true;
+		    hashes.add(nonce - chunk + 1);
+		    thread_hashes.add(nonce - chunk + 1);
+		    return;
+		}
+		hashes.add(limit - chunk);
+		thread_hashes.add(limit - chunk);
+	    }
+	}
+    }
+}
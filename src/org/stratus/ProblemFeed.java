@@ -0,0 +1,123 @@
+package org.stratus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Scanners made ready ahead of time for the problems queued to follow
+// the current one (see ZooKeeperCommunicator.getQueuedProblems()).
+//
+// Preparing a scanner is where an engine does its per-problem work: the
+// midstate of the header's first 64 bytes, and for the batch and vector
+// engines the constant words of the message schedules.  The miner calls
+// refresh() at a check-in whenever the queue has changed; that only
+// hands the list to our own thread, which makes the scanners while the
+// search threads go on hashing, so when /config moves on to a queued
+// problem the miner just picks up the scanner that's already made.
+// A refresh that's been overtaken by a newer one is skipped.
+//
+// Problems are keyed by their /config string, "header/target".
+//
+// Team Stratus.
+
+public class ProblemFeed {
+
+    private final HashEngine      engine;
+    private final ExecutorService preparer;
+    private final Map<String, HashEngine.Scanner> prepared = new HashMap<String, HashEngine.Scanner>();   // under this
+    private int refreshes;                                                                               // under this
+
+    public ProblemFeed(HashEngine engine) {
+	this.engine   = engine;
+	this.preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+		    Thread thread = new Thread(runnable, "problem-feed");
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+    }
+
+    // Have scanners made for these problems, in the background, and forget any others, apart
+    // from current.  Returns straight away.
+
+    public void refresh(List<String> problems, final String current) {
+	final List<String> configs = new ArrayList<String>(problems);
+	final int          refresh;
+
+	synchronized (this) {
+	    refresh = ++refreshes;
+	}
+	preparer.execute(new Runnable() {
+		public void run() {
+		    prepareAll(configs, current, refresh);
+		}
+	    });
+    }
+
+    private void prepareAll(List<String> configs, String current, int refresh) {
+	for (String config : configs) {
+	    synchronized (this) {
+		if (refresh != refreshes) {
+		    return;   // there's a newer list
+		}
+		if (prepared.containsKey(config)) {
+		    continue;
+		}
+	    }
+	    HashEngine.Scanner scanner = prepare(config);
+	    synchronized (this) {
+		prepared.put(config, scanner);
+	    }
+	}
+
+	List<String> keep = new ArrayList<String>(configs);
+	keep.add(current);
+	synchronized (this) {
+	    if (refresh == refreshes) {
+		prepared.keySet().retainAll(keep);
+	    }
+	}
+    }
+
+    // A scanner for the problem: the one made ahead of time if there is one, otherwise a new one.
+
+    public HashEngine.Scanner get(String config) {
+	synchronized (this) {
+	    HashEngine.Scanner scanner = prepared.get(config);
+	    if (scanner != null) {
+		return scanner;
+	    }
+	}
+	HashEngine.Scanner scanner = prepare(config);
+	synchronized (this) {
+	    prepared.put(config, scanner);
+	}
+	return scanner;
+    }
+
+    public void close() {
+	preparer.shutdownNow();
+    }
+
+    private HashEngine.Scanner prepare(String config) {
+	String block_header  = config.split("/")[0];
+	String target_header = config.split("/")[1];
+	return engine.prepare(hexStringToByteArray(block_header), new HashTarget(hexStringToByteArray(target_header)));
+    }
+
+    // Take a hex string, such as a representation of a SHA 256, and return as an array of bytes
+
+    private static byte[] hexStringToByteArray(String str) {
+	int len = str.length();
+	byte[] data = new byte[len / 2];
+	for (int i = 0; i < len; i += 2) {
+	    data[i / 2] = (byte) ((Character.digit(str.charAt(i), 16) << 4) + Character.digit(str.charAt(i+1), 16));
+	}
+	return data;
+    }
+}
@@ -0,0 +1,195 @@
+package org.stratus;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// How hashing scales with threads on one machine, without hadoop:
+//
+//    java org.stratus.ScaleBench [max-threads] [nonces-per-line] [csv | json] [input-file ...]
+//
+// The input files are BitMineTime's, one "start-nonce:header:target"
+// line per map task; without any we use the known blocks (see
+// Solution), starting a little before each one's nonce.  For 1, 2, 4
+// ... threads up to max-threads (by default the number of cores) we run
+// NonceSearch over nonces-per-line nonces from each line, as BitMineTime
+// would, going on past any hits, and time each line.
+//
+// For each thread count we report the total throughput, the throughput
+// per thread, the scaling efficiency (throughput over that of one
+// thread times the number of threads), and the shortest time per line,
+// its p50, p90 and p99 percentiles and the longest, as CSV or JSON on
+// standard output.  A percentile needs enough lines to be more than the
+// longest time, ten for p90 and a hundred for p99, so with fewer (as
+// with the ten known blocks) it's left empty, or null.  Progress goes
+// to standard error.  The engine is the "bitmine.engine" system property, or the
+// fastest (see HashEngines); before the first run every line is scanned
+// once on all of the threads to warm up the JIT.
+//
+// Team Stratus.
+
+public class ScaleBench {
+
+    private static final long DEFAULT_NONCES = 1 << 20;
+
+    private static class Line {
+	final long               start_nonce;
+	final HashEngine.Scanner scanner;
+
+	Line(long start_nonce, HashEngine.Scanner scanner) {
+	    this.start_nonce = start_nonce;
+	    this.scanner     = scanner;
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	int     max_threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+	long    nonces      = (args.length > 1) ? Long.parseLong(args[1]) : DEFAULT_NONCES;
+	boolean json        = (args.length > 2) && args[2].equals("json");
+
+	// choosing an engine can be chatty; keep standard output for the results
+
+	PrintStream results = System.out;
+	System.setOut(System.err);
+	HashEngine engine = HashEngines.select();
+	System.setOut(results);
+
+	List<Line> lines = new ArrayList<Line>();
+
+	if (args.length > 3) {
+	    for (int i = 3; i < args.length; i++) {
+		readLines(args[i], engine, lines);
+	    }
+	} else {
+	    for (Solution solution : Solution.KNOWN) {
+		lines.add(new Line(Math.max(0, solution.nonce - nonces / 2), engine.prepare(solution.getHeader(), new HashTarget(solution.getTarget()))));
+	    }
+	}
+
+	List<Integer> counts = new ArrayList<Integer>();
+	for (int threads = 1; threads < max_threads; threads *= 2) {
+	    counts.add(threads);
+	}
+	counts.add(max_threads);
+
+	System.err.printf("%d lines of %d nonces, hash engine %s, up to %d threads\n", lines.size(), nonces, engine.getName(), max_threads);
+	run(lines, nonces, max_threads);   // warmup
+
+	double single = 0;   // hashes/sec with one thread
+
+	if (json) {
+	    System.out.println("[");
+	} else {
+	    System.out.println("threads,hashes,seconds,hashes_per_sec,hashes_per_sec_per_thread,efficiency,min_ms,p50_ms,p90_ms,p99_ms,max_ms");
+	}
+
+	for (int i = 0; i < counts.size(); i++) {
+	    int      threads = counts.get(i);
+	    long     began   = System.nanoTime();
+	    long[]   times   = run(lines, nonces, threads);
+	    double   seconds = (System.nanoTime() - began) / 1e9;
+	    long     hashes  = nonces * lines.size();
+	    double   rate    = hashes / seconds;
+
+	    if (threads == 1) {
+		single = rate;
+	    }
+	    double efficiency = (single > 0) ? rate / (single * threads) : Double.NaN;
+
+	    Arrays.sort(times);
+	    System.err.printf("%d threads: %.0f hashes/sec\n", threads, rate);
+
+	    if (json) {
+		System.out.printf("  {\"threads\": %d, \"hashes\": %d, \"seconds\": %.3f, \"hashes_per_sec\": %.0f, \"hashes_per_sec_per_thread\": %.0f, \"efficiency\": %s, "
+				  + "\"min_ms\": %.3f, \"p50_ms\": %s, \"p90_ms\": %s, \"p99_ms\": %s, \"max_ms\": %.3f}%s\n",
+				  threads, hashes, seconds, rate, rate / threads, number(efficiency, "null"),
+				  times[0] / 1e6, number(percentile(times, 50), "null"), number(percentile(times, 90), "null"), number(percentile(times, 99), "null"),
+				  times[times.length - 1] / 1e6, (i + 1 < counts.size()) ? "," : "");
+	    } else {
+		System.out.printf("%d,%d,%.3f,%.0f,%.0f,%s,%.3f,%s,%s,%s,%.3f\n",
+				  threads, hashes, seconds, rate, rate / threads, number(efficiency, ""),
+				  times[0] / 1e6, number(percentile(times, 50), ""), number(percentile(times, 90), ""), number(percentile(times, 99), ""),
+				  times[times.length - 1] / 1e6);
+	    }
+	}
+
+	if (json) {
+	    System.out.println("]");
+	}
+    }
+
+    // Scan every line on the given number of threads; returns the nanoseconds each line took.
+
+    private static long[] run(List<Line> lines, long nonces, int threads) {
+	NonceSearch search = new NonceSearch(threads);
+	long[]      times  = new long[lines.size()];
+
+	try {
+	    for (int i = 0; i < lines.size(); i++) {
+		Line line  = lines.get(i);
+		long nonce = line.start_nonce;
+		long end   = line.start_nonce + nonces;
+		long began = System.nanoTime();
+
+		while (nonce < end && (nonce = search.search(line.scanner, nonce, end)) >= 0) {   // go on past any hits
+		    nonce++;
+		}
+		times[i] = System.nanoTime() - began;
+	    }
+	} finally {
+	    search.close();
+	}
+	return times;
+    }
+
+    // The p'th percentile of sorted nanoseconds, in milliseconds (nearest rank); NaN if there
+    // are too few for it to be anything but the longest, i.e. fewer than 100 / (100 - p).
+
+    private static double percentile(long[] sorted, int p) {
+	if (sorted.length * (100 - p) < 100) {
+	    return Double.NaN;
+	}
+	int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+	return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    // three decimal places, or missing for NaN
+
+    private static String number(double value, String missing) {
+	return Double.isNaN(value) ? missing : String.format("%.3f", value);
+    }
+
+    // BitMineTime input: "start-nonce:header:target" per line
+
+    private static void readLines(String file, HashEngine engine, List<Line> lines) throws IOException {
+	BufferedReader in = new BufferedReader(new FileReader(file));
+	try {
+	    String text;
+	    while ((text = in.readLine()) != null) {
+		text = text.trim();
+		if (text.isEmpty()) {
+		    continue;
+		}
+		String parts[] = text.split(":");
+		lines.add(new Line(Long.parseLong(parts[0], 10), engine.prepare(hexStringToByteArray(parts[1]), new HashTarget(hexStringToByteArray(parts[2])))));
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    // Take a hex string, such as a representation of a SHA 256, and return as an array of bytes
+
+    private static byte[] hexStringToByteArray(String str) {
+	int len = str.length();
+	byte[] data = new byte[len / 2];
+	for (int i = 0; i < len; i += 2) {
+	    data[i / 2] = (byte) ((Character.digit(str.charAt(i), 16) << 4) + Character.digit(str.charAt(i+1), 16));
+	}
+	return data;
+    }
+}
@@ -0,0 +1,211 @@
+package org.stratus;
+
+// Double SHA-256 of an 80 byte bitcoin block header, specialized for
+// searching the nonce space.
+//
+// The block header is version + prev_block + merkle_root + timestamp +
+// bits (76 bytes) followed by the 4 byte little-endian nonce.  The first
+// 64 bytes never change while we work on a problem, so we compress them
+// once into a "midstate".  Each nonce then costs one compression for the
+// rest of the header, and one compression for the second SHA-256 pass
+// over the 32 byte digest.  All state is kept in int arrays that are
+// allocated once per object, so hashing allocates nothing.
+//
+// The nonce field is only 32 bits, so we search a 64 bit "work" space:
+// the low 32 bits of a work number are the nonce, and the high bits are
+// added to the header's timestamp.  When a search runs past 2^32 we are
+// still hashing valid headers, each second of timestamp giving another
+// 2^32 nonces.  The timestamp is in the second chunk of the header, so
+// rolling it doesn't change the midstate; it only changes one word of
+// the second chunk's message.  (We don't have the coinbase transaction,
+// so we can't roll an extranonce through the merkle root instead.)
+//
+// A Sha256d object is not thread safe; use the copy constructor to give
+// each thread its own, sharing the precomputed midstate.
+//
+// Team Stratus.
+
+public final class Sha256d {
+
+    public static final int HEADER_PREFIX_LENGTH = 76;   // header bytes that precede the nonce
+    public static final int HEADER_LENGTH        = 80;
+
+    static final int[] K = {                   // also used by Sha256dLanes
+	0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+	0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+	0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+	0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+	0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+	0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+	0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+	0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+    static final int[] IV = {
+	0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19 };
+
+    private final int[] midstate = new int[8];    // state after compressing the first 64 bytes of the header
+    private final int[] tail     = new int[3];    // header words 16..18: end of merkle root, timestamp, bits
+    private final int[] w        = new int[64];   // message schedule, reused for every compression
+    private int         time;                     // the header's timestamp, as given
+    private int         roll;                     // how far we've rolled the timestamp: the high bits of the work number
+
+    // Set up for the given block header, either the 76 byte prefix or a full 80 byte header (whose nonce we ignore).
+
+    public Sha256d(byte[] header) {
+	setHeader(header);
+    }
+
+    // Share a prototype's precomputed midstate; the new object has its own working storage.
+
+    public Sha256d(Sha256d prototype) {
+	System.arraycopy(prototype.midstate, 0, midstate, 0, 8);
+	System.arraycopy(prototype.tail, 0, tail, 0, 3);
+	time = prototype.time;
+	roll = prototype.roll;
+    }
+
+    // Compute the midstate for a new block header.
+
+    public void setHeader(byte[] header) {
+	if (header.length < HEADER_PREFIX_LENGTH) {
+	    throw new IllegalArgumentException("block header must be at least " + HEADER_PREFIX_LENGTH + " bytes, got " + header.length);
+	}
+	midstate(header, midstate);
+
+	for (int i = 0; i < 3; i++) {
+	    tail[i] = bigEndianInt(header, 64 + 4 * i);
+	}
+	time = Integer.reverseBytes(tail[1]);   // timestamps are little-endian
+	roll = 0;
+    }
+
+    // The state after compressing the first 64 bytes of a header: the
+    // midstate, shared by every nonce.
+
+    static void midstate(byte[] header, int[] state) {
+	int[] w = new int[64];
+	for (int i = 0; i < 16; i++) {
+	    w[i] = bigEndianInt(header, 4 * i);
+	}
+	System.arraycopy(IV, 0, state, 0, 8);
+	compress(state, w);
+    }
+
+    // The full 80 byte header that a work number stands for: the given
+    // header (or its 76 byte prefix) with the timestamp rolled forward by
+    // the work number's high bits, and its low 32 bits as the nonce.
+
+    public static byte[] header(byte[] header, long work) {
+	byte[] data = new byte[HEADER_LENGTH];
+	System.arraycopy(header, 0, data, 0, HEADER_PREFIX_LENGTH);
+
+	int time = littleEndianInt(data, 68) + (int) (work >>> 32);
+	putLittleEndianInt(data, 68, time);
+	putLittleEndianInt(data, 76, (int) work);
+	return data;
+    }
+
+    // Double SHA-256 of the header for the given work number (see above).
+    // The eight words of the final digest are left in out[0..7], in
+    // SHA-256 (big-endian) word order.  Note that bitcoin displays and
+    // compares hashes byte reversed, so the most significant word of the
+    // hash as a number is Integer.reverseBytes(out[7]).
+
+    public void hash(long work, int[] out) {
+	int nonce = (int) work;
+	int r     = (int) (work >>> 32);
+
+	if (r != roll) {
+	    roll    = r;
+	    tail[1] = Integer.reverseBytes(time + r);
+	}
+
+	// first pass, second chunk: rest of the header, the nonce, and padding for an 80 byte message
+
+	System.arraycopy(midstate, 0, out, 0, 8);
+	w[0]  = tail[0];
+	w[1]  = tail[1];
+	w[2]  = tail[2];
+	w[3]  = Integer.reverseBytes(nonce);   // the nonce is stored little-endian in the header
+	w[4]  = 0x80000000;
+	for (int i = 5; i < 15; i++) w[i] = 0;
+	w[15] = 640;
+	compress(out, w);
+
+	// second pass over the 32 byte digest, padded to a single chunk
+
+	System.arraycopy(out, 0, w, 0, 8);
+	w[8]  = 0x80000000;
+	for (int i = 9; i < 15; i++) w[i] = 0;
+	w[15] = 256;
+	System.arraycopy(IV, 0, out, 0, 8);
+	compress(out, w);
+    }
+
+    // Double SHA-256 of the header for the given work number, as the 32
+    // bytes bitcoin displays (that is, byte reversed).  This allocates, so
+    // it's meant for reporting solutions rather than for the search loop.
+
+    public byte[] digest(long work) {
+	int[] words = new int[8];
+	hash(work, words);
+
+	byte[] data = new byte[32];
+	for (int i = 0; i < 8; i++) {
+	    int word = Integer.reverseBytes(words[7 - i]);
+	    data[4 * i]     = (byte) (word >>> 24);
+	    data[4 * i + 1] = (byte) (word >>> 16);
+	    data[4 * i + 2] = (byte) (word >>> 8);
+	    data[4 * i + 3] = (byte) word;
+	}
+	return data;
+    }
+
+    // One SHA-256 compression: fold the 16 words in w[0..15] into the
+    // eight words of state.  w[16..63] are overwritten with the expanded
+    // message schedule.
+
+    private static void compress(int[] state, int[] w) {
+
+	for (int i = 16; i < 64; i++) {
+	    int s0 = w[i - 15];
+	    int s1 = w[i - 2];
+	    s0 = Integer.rotateRight(s0, 7) ^ Integer.rotateRight(s0, 18) ^ (s0 >>> 3);
+	    s1 = Integer.rotateRight(s1, 17) ^ Integer.rotateRight(s1, 19) ^ (s1 >>> 10);
+	    w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+	}
+
+	int a = state[0], b = state[1], c = state[2], d = state[3];
+	int e = state[4], f = state[5], g = state[6], h = state[7];
+
+	for (int i = 0; i < 64; i++) {
+	    int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + K[i] + w[i];
+	    int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+	    h = g;
+	    g = f;
+	    f = e;
+	    e = d + t1;
+	    d = c;
+	    c = b;
+	    b = a;
+	    a = t1 + t2;
+	}
+
+	state[0] += a;  state[1] += b;  state[2] += c;  state[3] += d;
+	state[4] += e;  state[5] += f;  state[6] += g;  state[7] += h;
+    }
+
+    private static int bigEndianInt(byte[] data, int offset) {
+	return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int littleEndianInt(byte[] data, int offset) {
+	return Integer.reverseBytes(bigEndianInt(data, offset));
+    }
+
+    private static void putLittleEndianInt(byte[] data, int offset, int value) {
+	for (int i = 0; i < 4; i++) {
+	    data[offset + i] = (byte) (value >>> (8 * i));
+	}
+    }
+}
@@ -0,0 +1,138 @@
+package org.stratus;
+
+// Double SHA-256 of one block header with LANES different nonces at
+// once, for CpuBatchKernel.
+//
+// This is Sha256d laid out "structure of arrays": every word of the
+// message schedule and of the hash state is an array of LANES values,
+// one per nonce, stored as row j of a flat array (word j of lane l is
+// at j * LANES + l).  Each step of SHA-256 is then a short loop doing
+// the same arithmetic on all of the lanes, with no branches and no
+// dependencies between lanes, which is the shape of loop the JIT can
+// compile to SIMD instructions.  The lanes share the midstate, as the
+// threads of a GPU block share the header.
+//
+// Rather than shuffle eight rows of working variables each round, we
+// rotate which row plays which variable: in round i, a is row -i mod 8,
+// b is row 1 - i mod 8, and so on, and only the new a and e are stored.
+//
+// Like Sha256d, work numbers past 2^32 roll the header's timestamp,
+// and a Sha256dLanes is not thread safe; use the copy constructor.
+//
+// Team Stratus.
+
+public final class Sha256dLanes {
+
+    public static final int LANES = 16;
+
+    private final int[] midstate = new int[8];              // state after compressing the first 64 bytes of the header
+    private final int[] tail     = new int[3];              // header words 16..18: end of merkle root, timestamp, bits
+    private final int[] w        = new int[64 * LANES];     // message schedule, a row per word
+    private final int[] state    = new int[8 * LANES];      // working variables, a row per variable
+    private int         time;                               // the header's timestamp, as given
+
+    // Set up for the given block header, either the 76 byte prefix or a full 80 byte header (whose nonce we ignore).
+
+    public Sha256dLanes(byte[] header) {
+	setHeader(header);
+    }
+
+    // Share a prototype's precomputed midstate; the new object has its own working storage.
+
+    public Sha256dLanes(Sha256dLanes prototype) {
+	System.arraycopy(prototype.midstate, 0, midstate, 0, 8);
+	System.arraycopy(prototype.tail, 0, tail, 0, 3);
+	time = prototype.time;
+    }
+
+    public void setHeader(byte[] header) {
+	if (header.length < Sha256d.HEADER_PREFIX_LENGTH) {
+	    throw new IllegalArgumentException("block header must be at least " + Sha256d.HEADER_PREFIX_LENGTH + " bytes, got " + header.length);
+	}
+	Sha256d.midstate(header, midstate);
+
+	for (int i = 0; i < 3; i++) {
+	    tail[i] = ((header[64 + 4 * i] & 0xff) << 24) | ((header[65 + 4 * i] & 0xff) << 16) | ((header[66 + 4 * i] & 0xff) << 8) | (header[67 + 4 * i] & 0xff);
+	}
+	time = Integer.reverseBytes(tail[1]);   // timestamps are little-endian
+    }
+
+    // Double SHA-256 of the headers for work numbers works[offset .. offset + count),
+    // with count at most LANES.  Word j of lane l's digest is left in out[j * LANES + l],
+    // in the same word order as Sha256d.hash() (see HashTarget.isMet(hash, lane, lanes)).
+    // Lanes from count on repeat the last work number.
+
+    public void hash(long[] works, int offset, int count, int[] out) {
+
+	// first pass, second chunk: rest of the header, the nonce, and padding for an 80 byte message
+
+	for (int l = 0; l < LANES; l++) {
+	    long work = works[offset + Math.min(l, count - 1)];
+	    w[l]              = tail[0];
+	    w[LANES + l]      = Integer.reverseBytes(time + (int) (work >>> 32));
+	    w[2 * LANES + l]  = tail[2];
+	    w[3 * LANES + l]  = Integer.reverseBytes((int) work);   // the nonce is stored little-endian in the header
+	    w[4 * LANES + l]  = 0x80000000;
+	    w[15 * LANES + l] = 640;
+	}
+	java.util.Arrays.fill(w, 5 * LANES, 15 * LANES, 0);
+
+	for (int j = 0; j < 8; j++) {
+	    java.util.Arrays.fill(out, j * LANES, (j + 1) * LANES, midstate[j]);
+	}
+	compress(out);
+
+	// second pass over the 32 byte digests, padded to a single chunk
+
+	System.arraycopy(out, 0, w, 0, 8 * LANES);
+	java.util.Arrays.fill(w, 8 * LANES, 9 * LANES, 0x80000000);
+	java.util.Arrays.fill(w, 9 * LANES, 15 * LANES, 0);
+	java.util.Arrays.fill(w, 15 * LANES, 16 * LANES, 256);
+
+	for (int j = 0; j < 8; j++) {
+	    java.util.Arrays.fill(out, j * LANES, (j + 1) * LANES, Sha256d.IV[j]);
+	}
+	compress(out);
+    }
+
+    // One SHA-256 compression in every lane: fold rows 0..15 of w into the
+    // eight rows of out.  Rows 16..63 of w get the expanded schedule.
+
+    private void compress(int[] out) {
+
+	for (int i = 16; i < 64; i++) {
+	    int row = i * LANES;
+	    for (int l = 0; l < LANES; l++) {
+		int s0 = w[row - 15 * LANES + l];
+		int s1 = w[row - 2 * LANES + l];
+		s0 = Integer.rotateRight(s0, 7) ^ Integer.rotateRight(s0, 18) ^ (s0 >>> 3);
+		s1 = Integer.rotateRight(s1, 17) ^ Integer.rotateRight(s1, 19) ^ (s1 >>> 10);
+		w[row + l] = w[row - 16 * LANES + l] + s0 + w[row - 7 * LANES + l] + s1;
+	    }
+	}
+
+	System.arraycopy(out, 0, state, 0, 8 * LANES);
+
+	for (int i = 0; i < 64; i++) {
+	    int ra = ((0 - i) & 7) * LANES,  rb = ((1 - i) & 7) * LANES,  rc = ((2 - i) & 7) * LANES,  rd = ((3 - i) & 7) * LANES;
+	    int re = ((4 - i) & 7) * LANES,  rf = ((5 - i) & 7) * LANES,  rg = ((6 - i) & 7) * LANES,  rh = ((7 - i) & 7) * LANES;
+	    int k  = Sha256d.K[i];
+	    int rw = i * LANES;
+
+	    for (int l = 0; l < LANES; l++) {
+		int a = state[ra + l], b = state[rb + l], c = state[rc + l];
+		int e = state[re + l], f = state[rf + l], g = state[rg + l];
+		int t1 = state[rh + l] + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + k + w[rw + l];
+		int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+		state[rd + l] += t1;         // the next round's e
+		state[rh + l]  = t1 + t2;    // the next round's a
+	    }
+	}
+
+	// after 64 rounds every variable is back in its own row
+
+	for (int j = 0; j < 8 * LANES; j++) {
+	    out[j] += state[j];
+	}
+    }
+}
@@ -0,0 +1,154 @@
+package org.stratus;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Double SHA-256 of a block header for several nonces per instruction,
+// with the JDK's Vector API: each IntVector holds one word of the hash
+// for 4, 8 or 16 nonces, as many as the CPU's widest vectors take
+// (SSE, AVX2 and AVX-512 respectively), and every step of SHA-256 is a
+// single vector operation on all of them.  The message schedules are
+// kept a row of lanes per word, as in Sha256dLanes.  All of the lanes
+// share the midstate, and the words of the messages that don't depend
+// on the nonce are filled in once per problem.
+//
+// The Vector API is an incubator module, so this class is compiled and
+// run with "--add-modules jdk.incubator.vector", and nothing else in
+// the tree refers to it directly; VectorEngine loads it by name, and
+// falls back to Sha256d if it can't.
+//
+// Like the other scanners, a Sha256dVector is not thread safe.
+//
+// Team Stratus.
+
+public final class Sha256dVector implements HashEngine.Scanner {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int                    LANES   = SPECIES.length();
+
+    private final byte[]     header;
+    private final HashTarget target;
+    private final int[]      midstate = new int[8];
+    private final int        merkle_tail;                       // header word 16
+    private final int        time;                              // the header's timestamp, as given
+    private final int        bits;                              // header word 18
+
+    private final int[]      first  = new int[64 * LANES];   // message schedule of the first pass, a row of LANES per word
+    private final int[]      second = new int[64 * LANES];   // and of the second pass
+    private final int[]      hash   = new int[8 * LANES];    // the digests of a batch of lanes, a row per word
+
+    public Sha256dVector(byte[] header, HashTarget target) {
+	if (header.length < Sha256d.HEADER_PREFIX_LENGTH) {
+	    throw new IllegalArgumentException("block header must be at least " + Sha256d.HEADER_PREFIX_LENGTH + " bytes, got " + header.length);
+	}
+	this.header = header;
+	this.target = target;
+
+	Sha256d.midstate(header, midstate);
+	merkle_tail = bigEndianInt(header, 64);
+	time        = Integer.reverseBytes(bigEndianInt(header, 68));   // timestamps are little-endian
+	bits        = bigEndianInt(header, 72);
+
+	// the words of both passes that are the same for every nonce: the
+	// rest of the header, and the padding for 80 and 32 byte messages
+
+	fill(first, 0, merkle_tail);
+	fill(first, 2, bits);
+	fill(first, 4, 0x80000000);
+	fill(first, 15, 640);
+	fill(second, 8, 0x80000000);
+	fill(second, 15, 256);
+    }
+
+    // the number of nonces we hash at once
+
+    public static int lanes() {
+	return LANES;
+    }
+
+    public long scan(long start, long end) {
+	int mask = target.rejectMask();
+
+	for (long base = start; base < end; base += LANES) {
+	    for (int l = 0; l < LANES; l++) {
+		long work = base + l;
+		first[LANES + l]     = Integer.reverseBytes(time + (int) (work >>> 32));   // the rolled timestamp
+		first[3 * LANES + l] = Integer.reverseBytes((int) work);                   // the nonce is stored little-endian in the header
+	    }
+
+	    compress(midstate, first, second);     // the first pass's digest is the start of the second's message
+	    compress(Sha256d.IV, second, hash);
+
+	    // nearly every lane fails the target on its last word; only look closer if one doesn't
+
+	    if (IntVector.fromArray(SPECIES, hash, 7 * LANES).and(mask).compare(VectorOperators.EQ, 0).anyTrue()) {
+		for (int l = 0; l < LANES && base + l < end; l++) {
+		    if (target.isMet(hash, l, LANES)) {
+			return base + l;
+		    }
+		}
+	    }
+	}
+	return -1;
+    }
+
+    public HashEngine.Scanner copy() {
+	return new Sha256dVector(header, target);
+    }
+
+    // One SHA-256 compression of rows 0..15 of w, in every lane, starting
+    // from the same state in each; rows 16..63 of w are overwritten with
+    // the expanded message schedule.  The new state goes in rows 0..7 of out.
+
+    private static void compress(int[] initial, int[] w, int[] out) {
+
+	for (int i = 16; i < 64; i++) {
+	    IntVector s0 = IntVector.fromArray(SPECIES, w, (i - 15) * LANES);
+	    IntVector s1 = IntVector.fromArray(SPECIES, w, (i - 2) * LANES);
+	    s0 = s0.lanewise(VectorOperators.ROR, 7).lanewise(VectorOperators.XOR, s0.lanewise(VectorOperators.ROR, 18)).lanewise(VectorOperators.XOR, s0.lanewise(VectorOperators.LSHR, 3));
+	    s1 = s1.lanewise(VectorOperators.ROR, 17).lanewise(VectorOperators.XOR, s1.lanewise(VectorOperators.ROR, 19)).lanewise(VectorOperators.XOR, s1.lanewise(VectorOperators.LSHR, 10));
+	    IntVector.fromArray(SPECIES, w, (i - 16) * LANES).add(s0).add(IntVector.fromArray(SPECIES, w, (i - 7) * LANES)).add(s1).intoArray(w, i * LANES);
+	}
+
+	IntVector a = IntVector.broadcast(SPECIES, initial[0]), b = IntVector.broadcast(SPECIES, initial[1]);
+	IntVector c = IntVector.broadcast(SPECIES, initial[2]), d = IntVector.broadcast(SPECIES, initial[3]);
+	IntVector e = IntVector.broadcast(SPECIES, initial[4]), f = IntVector.broadcast(SPECIES, initial[5]);
+	IntVector g = IntVector.broadcast(SPECIES, initial[6]), h = IntVector.broadcast(SPECIES, initial[7]);
+
+	for (int i = 0; i < 64; i++) {
+	    IntVector s1 = e.lanewise(VectorOperators.ROR, 6).lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 11)).lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 25));
+	    IntVector ch = g.lanewise(VectorOperators.XOR, e.and(f.lanewise(VectorOperators.XOR, g)));
+	    IntVector t1 = h.add(s1).add(ch).add(Sha256d.K[i]).add(IntVector.fromArray(SPECIES, w, i * LANES));
+	    IntVector s0 = a.lanewise(VectorOperators.ROR, 2).lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 13)).lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 22));
+	    IntVector mj = a.and(b).or(c.and(a.or(b)));
+	    h = g;
+	    g = f;
+	    f = e;
+	    e = d.add(t1);
+	    d = c;
+	    c = b;
+	    b = a;
+	    a = t1.add(s0).add(mj);
+	}
+
+	a.add(initial[0]).intoArray(out, 0);
+	b.add(initial[1]).intoArray(out, LANES);
+	c.add(initial[2]).intoArray(out, 2 * LANES);
+	d.add(initial[3]).intoArray(out, 3 * LANES);
+	e.add(initial[4]).intoArray(out, 4 * LANES);
+	f.add(initial[5]).intoArray(out, 5 * LANES);
+	g.add(initial[6]).intoArray(out, 6 * LANES);
+	h.add(initial[7]).intoArray(out, 7 * LANES);
+    }
+
+    // set row j of a schedule to value in every lane
+
+    private static void fill(int[] w, int j, int value) {
+	java.util.Arrays.fill(w, j * LANES, (j + 1) * LANES, value);
+    }
+
+    private static int bigEndianInt(byte[] data, int offset) {
+	return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}
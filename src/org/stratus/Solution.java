@@ -0,0 +1,76 @@
+package org.stratus;
+
+// The known block solutions from BitMine.Solutions, for benchmarks and
+// for checking hash engines against real data.
+//
+// Each block is [version + prev_block + merkle_root + timestamp + bits]
+// [expanded target] [SuccessNonce in decimal] [resulting Hash], separated
+// by spaces, just as in BitMine.Solutions.
+//
+// Team Stratus.
+
+public class Solution {
+
+    private static final String[] BLOCKS = {
+	"0100000081cd02ab7e569e8bcd9317e2fe99f2de44d49ab2b8851ba4a308000000000000e320b6c2fffc8d750423db8b1eb942ae710e951ed797f7affc8892b0f1fc122bc7f5d74df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 2504433986 00000000000000001e8d6829a8a21adc5d38d0a473b144b6765798e61f98bd1d",
+	"010000001dbd981fe6985776b644b173a4d0385ddc1aa2a829688d1e0000000000000000b371c14921b20c2895ed76545c116e0ad70167c5c4952ca201f5d544a26efb53b4f6d74df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 2165053959 0000000000001c0533ea776756cb6fdedbd952d3ab8bc71de3cd3f8a44cbaf85",
+	"0100000085afcb448a3fcde31dc78babd352d9dbde6fcb566777ea33051c000000000000ca5b6b96fe65e1a7d50e7c3025a176472ba26d44512de86a6f3e39649330cd2f16f7d74df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 2947380357 0000000000001112dff6e2a85b35d4f7ab7005b1b749282eeb1fdf094722601e",
+	"010000001e60224709df1feb2e2849b7b10570abf7d4355ba8e2f6df121100000000000028cc65b7be2f8a1edc2af86ef369472443a1b70479cee205e8db5440cfbe943f57fad74df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 1540236492 00000000000022177691274561ebb697c01447998ce579f57212470b6837cf98",
+	"0100000098cf37680b471272f579e58c994714c097b6eb61452791761722000000000000b03c5b741b4ba5cc58b043cac824e441671ee3774e33d79618d5a80f36e9c85265fbd74df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 2490931302 0000000000000d1b6f35712001533f259195136c25f14767813e215e49b0db4b",
+	"010000004bdbb0495e213e816747f1256c139591253f53012071356f1b0d000000000000106c8b4ee453d3362e568fca0fd8f749e277618a908e703bb49fe353631d75e06afcd74df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 3332866095 000000000000436aa3bacdf7fca3584729a777d4f4db6b8c987260bbe6366b31",
+	"01000000316b36e6bb6072988c6bdbf4d477a7294758a3fcf7cdbaa36a430000000000009d77d14e74506b41a025d6a208665c7f7c17423d45e1590af1efaf12e87ba0fc26fdd74df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 1737841105 00000000000043117e5e9fc97bbcc5bb84e8d5e57858905c57d83ee57af23956",
+	"010000005639f27ae53ed8575c905878e5d5e884bbc5bc7bc99f5e7e1143000000000000dbc06f4c083bd0e327d025329006e40a9f976bb3bfc70a41bb38fb75ca2d151f2ffdd74df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 2308925096 00000000000025639135c036c61ae65075f34a77853924fd83a76114a9448d04",
+	"01000000048d44a91461a783fd243985774af37550e61ac636c035916325000000000000d278032f90166f89ae0fb6a3bb331b6bf7395aee5763be80eaf32fb5e8754c2f0d00d84df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 2835572962 000000000000366cadd9d59c95a47cf5a073bb728dadcd2eb6d8035ebcb0f0ba",
+	"01000000baf0b0bc5e03d8b62ecdad8d72bb73a0f57ca4959cd5d9ad6c3600000000000076e0569c5dd0392739003d2e4480a0a3c1f37f3cd06488e5eb439c63759649575a00d84df2b9441a 00000000000044b9f20000000000000000000000000000000000000000000000 330002446 0000000000001df899cb037d1a98e619ef374d62f5b734e05eb6f778c2782609"
+    };
+
+    public static final Solution[] KNOWN = new Solution[BLOCKS.length];
+
+    static {
+	for (int i = 0; i < BLOCKS.length; i++) {
+	    KNOWN[i] = new Solution(BLOCKS[i]);
+	}
+    }
+
+    public final String header_hex;    // the 76 byte header prefix, without the nonce
+    public final String target_hex;
+    public final long   nonce;
+    public final String hash_hex;      // the winning double SHA-256, in bitcoin's display order
+
+    private Solution(String block) {
+	String parts[] = block.split(" ");
+	header_hex = parts[0];
+	target_hex = parts[1];
+	nonce      = Long.parseLong(parts[2], 10);
+	hash_hex   = parts[3];
+    }
+
+    public byte[] getHeader() {
+	return hexStringToByteArray(header_hex);
+    }
+
+    public byte[] getTarget() {
+	return hexStringToByteArray(target_hex);
+    }
+
+    public byte[] getHash() {
+	return hexStringToByteArray(hash_hex);
+    }
+
+    // The /config string for this block's problem, "header/target".
+
+    public String getConfig() {
+	return header_hex + "/" + target_hex;
+    }
+
+    // Take a hex string, such as a representation of a SHA 256, and return as an array of bytes
+
+    private static byte[] hexStringToByteArray(String str) {
+	int len = str.length();
+	byte[] data = new byte[len / 2];
+	for (int i = 0; i < len; i += 2) {
+	    data[i / 2] = (byte) ((Character.digit(str.charAt(i), 16) << 4) + Character.digit(str.charAt(i+1), 16));
+	}
+	return data;
+    }
+}
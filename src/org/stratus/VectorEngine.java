@@ -0,0 +1,68 @@
+package org.stratus;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+// The SIMD hash engine: Sha256dVector, which hashes a vector's worth of
+// nonces at a time with the JDK's Vector API.
+//
+// The Vector API is still an incubator module, which has to be added to
+// the JVM with "--add-modules jdk.incubator.vector" (and is missing
+// altogether before JDK 16), so we load Sha256dVector by name.  If that
+// fails we fall back to the scalar Sha256d, and say so once, with why;
+// the engine still works, it's just no faster than JavaEngine.
+//
+// Team Stratus.
+
+public class VectorEngine implements HashEngine {
+
+    private static Throwable            failure;   // why we couldn't load Sha256dVector, if we couldn't
+    private static final Constructor<?> VECTOR = load();
+
+    public String getName() {
+	return "vector";
+    }
+
+    public HashEngine.Scanner prepare(byte[] header, HashTarget target) {
+	if (VECTOR == null) {
+	    return new JavaEngine().prepare(header, target);
+	}
+	try {
+	    return (HashEngine.Scanner) VECTOR.newInstance(header, target);
+	} catch (Exception e) {
+	    throw new IllegalStateException("can't set up the vector hash engine: " + e);
+	}
+    }
+
+    // whether we have the Vector API, or are falling back to scalar code
+
+    public static boolean isVectorized() {
+	return VECTOR != null;
+    }
+
+    // what went wrong loading the Vector API code, or null if nothing did
+
+    public static Throwable getFailure() {
+	return failure;
+    }
+
+    // Sha256dVector's constructor, or null (and failure set) if we can't have it
+
+    private static Constructor<?> load() {
+	try {
+	    Class<?> vector = Class.forName("org.stratus.Sha256dVector");
+	    int      lanes  = (Integer) vector.getMethod("lanes").invoke(null);   // fails here if the module is missing
+
+	    System.out.printf("vector hash engine: %d lanes\n", lanes);
+	    return vector.getConstructor(byte[].class, HashTarget.class);
+	} catch (InvocationTargetException e) {
+	    failure = e.getCause();
+	} catch (Exception e) {
+	    failure = e;
+	} catch (LinkageError e) {
+	    failure = e;
+	}
+	System.out.println("vector hash engine: jdk.incubator.vector isn't available (" + failure + "); using scalar code");
+	return null;
+    }
+}
@@ -28,9 +28,23 @@ void byte_swap(unsigned char* data, int len) {
         }
 }
 
+// is the hash less than the target?  both are 32 bytes, most significant byte first
+
+__device__ int less_than(unsigned char* hash, unsigned char* target) {
+        int c;
+
+        c=0;
+        while(c<32)
+        {
+                if (hash[c] != target[c]) return hash[c] < target[c];
+                c++;
+        }
+        return 0;
+}
+
 extern "C"
 
-__global__ void inversehash(int n,char Input[],long Nonce[], char Target[],long Output)
+__global__ void inversehash(int n,char Input[],long Nonce[], char Target[],long *Output)
 {
     	int i = blockIdx.x * blockDim.x + threadIdx.x;
         if (i<n)
@@ -48,9 +62,9 @@ __global__ void inversehash(int n,char Input[],long Nonce[], char Target[],long
     	SHA256_Update(&sha256_pass2,hash1,SHA256_DIGEST_LENGTH);
     	SHA256_Final(hash2, &sha256_pass2);
     	byte_swap(hash2, SHA256_DIGEST_LENGTH);
-        if(strcmp (hash2,Target) == 0)
+        if(less_than (hash2,(unsigned char*)Target))
          {
-              Output = i;
+              *Output = i;
          }
         }
 
@@ -0,0 +1,74 @@
+package org.stratus.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A histogram of durations, with fixed exponential buckets: bucket i
+// counts durations of at most FIRST_BOUND_NANOS * 2^i, from 10
+// microseconds up to about a minute and a half, and the last bucket
+// counts anything longer.  Every bucket and the running sum are
+// LongAdders, so threads recording at once don't contend; reading a
+// histogram adds up the stripes.
+//
+// Team Stratus.
+
+public final class Histogram {
+
+    public  static final int  BUCKETS           = 24;
+    private static final long FIRST_BOUND_NANOS = 10000;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];   // the last is for anything past the top bound
+    private final LongAdder   sum_nanos = new LongAdder();
+
+    public Histogram() {
+	for (int i = 0; i <= BUCKETS; i++) {
+	    counts[i] = new LongAdder();
+	}
+    }
+
+    public void observe(long nanos) {
+	int  i     = 0;
+	long bound = FIRST_BOUND_NANOS;
+	while (i < BUCKETS && nanos > bound) {
+	    i++;
+	    bound <<= 1;
+	}
+	counts[i].increment();
+	sum_nanos.add(nanos);
+    }
+
+    // record the time since start_nanos, a System.nanoTime()
+
+    public void observeSince(long start_nanos) {
+	observe(System.nanoTime() - start_nanos);
+    }
+
+    // the upper bound of bucket i, in seconds
+
+    public static double bound(int i) {
+	return (FIRST_BOUND_NANOS << i) / 1e9;
+    }
+
+    // the number of durations of at most bound(i), for i in 0 .. BUCKETS - 1
+
+    public long[] cumulativeCounts() {
+	long[] cumulative = new long[BUCKETS];
+	long   total      = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    total += counts[i].sum();
+	    cumulative[i] = total;
+	}
+	return cumulative;
+    }
+
+    public long getCount() {
+	long total = 0;
+	for (LongAdder count : counts) {
+	    total += count.sum();
+	}
+	return total;
+    }
+
+    public double getSumSeconds() {
+	return sum_nanos.sum() / 1e9;
+    }
+}
@@ -0,0 +1,18 @@
+package org.stratus.metrics;
+
+import java.util.Map;
+
+// What a MetricsRegistry shows over JMX, as org.stratus:type=Metrics.
+//
+// Team Stratus.
+
+public interface MetricsMXBean {
+
+    // every counter, and each histogram's count and sum, by name with labels
+
+    Map<String, Double> getValues();
+
+    // the same, in the Prometheus text format
+
+    String getText();
+}
@@ -0,0 +1,175 @@
+package org.stratus.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+// The counters and histograms of one JVM: hashes done, interval times,
+// zookeeper latencies and so on, readable over JMX (see MetricsMXBean)
+// and as Prometheus text (see MetricsServer).
+//
+// A metric is named as Prometheus has it, with any labels in braces,
+// e.g. bitmine_hashes_total{engine="jca"}.  Counters are LongAdders,
+// which keep a stripe per contending thread, so incrementing one from
+// every search thread costs about what incrementing a local would;
+// the stripes are only added up when someone reads them.  Looking a
+// metric up by name is a hash map lookup, so code on a hot path should
+// look it up once and keep it.
+//
+// The JVM's garbage collector counts are read from its MXBeans whenever
+// the metrics are, as jvm_gc_collections_total and jvm_gc_seconds_total.
+//
+// Team Stratus.
+
+public final class MetricsRegistry implements MetricsMXBean {
+
+    public static final String OBJECT_NAME = "org.stratus:type=Metrics";
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    static {
+	try {
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(DEFAULT, new ObjectName(OBJECT_NAME));
+	} catch (Exception e) {
+	    System.err.println("can't register metrics with JMX: " + e.getMessage());   // the counters still count
+	}
+    }
+
+    private final ConcurrentHashMap<String, LongAdder> counters   = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    // The registry for this JVM.
+
+    public static MetricsRegistry get() {
+	return DEFAULT;
+    }
+
+    // The counter with the given name and labels, given as name, value pairs; created at zero the first time.
+
+    public LongAdder counter(String name, String... labels) {
+	String    key     = key(name, labels);
+	LongAdder counter = counters.get(key);
+	if (counter == null) {
+	    counters.putIfAbsent(key, new LongAdder());
+	    counter = counters.get(key);
+	}
+	return counter;
+    }
+
+    // The histogram with the given name and labels.
+
+    public Histogram histogram(String name, String... labels) {
+	String    key       = key(name, labels);
+	Histogram histogram = histograms.get(key);
+	if (histogram == null) {
+	    histograms.putIfAbsent(key, new Histogram());
+	    histogram = histograms.get(key);
+	}
+	return histogram;
+    }
+
+    public Map<String, Double> getValues() {
+	Map<String, Double> values = new TreeMap<String, Double>();
+
+	for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+	    values.put(entry.getKey(), (double) entry.getValue().sum());
+	}
+	for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+	    values.put(suffixed(entry.getKey(), "_count"), (double) entry.getValue().getCount());
+	    values.put(suffixed(entry.getKey(), "_sum"), entry.getValue().getSumSeconds());
+	}
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+	    values.put(key("jvm_gc_collections_total", "gc", gc.getName()), (double) gc.getCollectionCount());
+	    values.put(key("jvm_gc_seconds_total", "gc", gc.getName()), gc.getCollectionTime() / 1000.0);
+	}
+	return values;
+    }
+
+    public String getText() {
+	StringBuilder out  = new StringBuilder();
+	String        last = null;   // the metric we last wrote a TYPE line for
+
+	List<String> names = new ArrayList<String>(counters.keySet());
+	Collections.sort(names);
+	for (String key : names) {
+	    last = type(out, last, key, "counter");
+	    out.append(key).append(' ').append(counters.get(key).sum()).append('\n');
+	}
+
+	names = new ArrayList<String>(histograms.keySet());
+	Collections.sort(names);
+	for (String key : names) {
+	    Histogram histogram  = histograms.get(key);
+	    long[]    cumulative = histogram.cumulativeCounts();
+
+	    last = type(out, last, key, "histogram");
+	    for (int i = 0; i < Histogram.BUCKETS; i++) {
+		out.append(labelled(suffixed(key, "_bucket"), "le", String.valueOf(Histogram.bound(i)))).append(' ').append(cumulative[i]).append('\n');
+	    }
+	    out.append(labelled(suffixed(key, "_bucket"), "le", "+Inf")).append(' ').append(histogram.getCount()).append('\n');
+	    out.append(suffixed(key, "_sum")).append(' ').append(histogram.getSumSeconds()).append('\n');
+	    out.append(suffixed(key, "_count")).append(' ').append(histogram.getCount()).append('\n');
+	}
+
+	out.append("# TYPE jvm_gc_collections_total counter\n");
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+	    out.append(key("jvm_gc_collections_total", "gc", gc.getName())).append(' ').append(gc.getCollectionCount()).append('\n');
+	}
+	out.append("# TYPE jvm_gc_seconds_total counter\n");
+	for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+	    out.append(key("jvm_gc_seconds_total", "gc", gc.getName())).append(' ').append(gc.getCollectionTime() / 1000.0).append('\n');
+	}
+	return out.toString();
+    }
+
+    // write a TYPE line for key's metric, unless it's the one we wrote last
+
+    private static String type(StringBuilder out, String last, String key, String type) {
+	String name = baseName(key);
+	if (! name.equals(last)) {
+	    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	return name;
+    }
+
+    // name{label="value",...}
+
+    static String key(String name, String... labels) {
+	if (labels.length == 0) {
+	    return name;
+	}
+	StringBuilder key = new StringBuilder(name).append('{');
+	for (int i = 0; i + 1 < labels.length; i += 2) {
+	    if (i > 0) {
+		key.append(',');
+	    }
+	    key.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+	}
+	return key.append('}').toString();
+    }
+
+    private static String baseName(String key) {
+	int brace = key.indexOf('{');
+	return (brace < 0) ? key : key.substring(0, brace);
+    }
+
+    // the metric name of key with a suffix, keeping its labels: a{b="c"} -> a_sum{b="c"}
+
+    private static String suffixed(String key, String suffix) {
+	return baseName(key) + suffix + key.substring(baseName(key).length());
+    }
+
+    // key with one more label
+
+    private static String labelled(String key, String label, String value) {
+	String extra = label + "=\"" + value + "\"";
+	return key.endsWith("}") ? key.substring(0, key.length() - 1) + "," + extra + "}" : key + "{" + extra + "}";
+    }
+}
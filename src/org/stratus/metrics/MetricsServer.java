@@ -0,0 +1,64 @@
+package org.stratus.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves MetricsRegistry.get() as Prometheus text at /metrics, with the
+// JDK's built in HTTP server on one daemon thread.  Miners start one if
+// "bitmine.metrics.port" is set (in the JobConf, or as a system property
+// for LocalMiner); port 0 takes any free port, which is printed, since
+// several map tasks may be running on the same node.
+//
+// Team Stratus.
+
+public class MetricsServer {
+
+    public static final String PORT_PROPERTY = "bitmine.metrics.port";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final HttpServer      server;
+    private final ExecutorService executor;
+
+    public MetricsServer(int port) throws IOException {
+	executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+		    Thread thread = new Thread(runnable, "metrics-server");
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+
+	server = HttpServer.create(new InetSocketAddress(port), 0);
+	server.createContext("/metrics", new HttpHandler() {
+		public void handle(HttpExchange exchange) throws IOException {
+		    byte[] body = MetricsRegistry.get().getText().getBytes(CHARSET);
+		    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		    exchange.sendResponseHeaders(200, body.length);
+		    OutputStream out = exchange.getResponseBody();
+		    out.write(body);
+		    out.close();
+		}
+	    });
+	server.setExecutor(executor);
+	server.start();
+    }
+
+    public int getPort() {
+	return server.getAddress().getPort();
+    }
+
+    public void stop() {
+	server.stop(0);
+	executor.shutdownNow();
+    }
+}
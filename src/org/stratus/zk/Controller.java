@@ -15,6 +15,9 @@ package org.stratus.zk;
 //     cleanup
 //     shutdown
 //     report
+//     watch [refresh-seconds [window-seconds]]
+//     enqueue config-string
+//     monitor
 //
 
 
@@ -29,10 +32,15 @@ package org.stratus.zk;
 // Worker processes are responsible for setting up nodes under /workers.
 // If a worker process' name is bc-001, say, then there will be
 //
+//    /workers/bc-001          - data is the worker's status, see WorkerStatus
 //    /workers/bc-001/active
-//    /workers/bc-001/current-nonce
-//    /workers/bc-001/initial-nonce
-//    /workers/bc-001/solution
+//
+
+// Workers that lease their nonces (see RangeLeaser) keep track of them
+// under /ranges, which initialize also creates:
+//
+//    /ranges/p-<zxid of /config>/leases/<chunk>
+//    /ranges/p-<zxid of /config>/done/<chunk>
 //
 
 // cleanup:
@@ -40,19 +48,51 @@ package org.stratus.zk;
 // The znode /workers/bc-001/active is ephermeral and will not exist 
 // if the worker process has exited.  We take advantage of this to 
 // remove any extinct workers on cleanup, but leave active ones alone.
+// We also remove the /ranges records of any problem other than the
+// current one.
+
+// Cleanup and report can touch thousands of znodes, so rather than a
+// blocking round trip for each one we issue them asynchronously, up
+// to WINDOW at a time (see RequestWindow), and wait for the lot.  A
+// session's requests are carried out in the order they're issued, so
+// we can delete a node's children and then the node itself without
+// waiting in between.  (Multi-op transactions would do the same job,
+// but they only arrived in zookeeper 3.4, and we run against 3.3.)
 
 // shutdown:
 //
 // removes the /config znode;  worker tasks are designed to immediately exit 
 
+// watch:
+//
+// keeps a session open and prints the state of every worker, its
+// hashrate over a sliding window, the fleet's hashrate, and the
+// expected time to a solution, every few seconds; see FleetWatch.
+
+// enqueue, monitor:
+//
+// enqueue adds a problem to the queue under /problems, which initialize
+// also creates.  monitor runs until interrupted, checking each solution
+// the workers publish and then moving /config on to the next problem in
+// the queue; see SolutionMonitor.
+
 
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.Watcher;
@@ -63,6 +103,7 @@ import org.apache.zookeeper.data.Stat;
 public class Controller implements Watcher {
   
     private static final int SESSION_TIMEOUT = 5000;
+    private static final int WINDOW = 1000;   // asynchronous requests outstanding at once
     private static final Charset CHARSET = Charset.forName("UTF-8");
 
     private ZooKeeper zk;
@@ -105,6 +146,34 @@ public class Controller implements Watcher {
 	}
     }
 
+    // create the znode /ranges if it doesn't already exist
+
+    public void createRangesNode() throws KeeperException,  InterruptedException {
+	Stat stat = zk.exists(RangeLeaser.RANGES, false);
+       	if (stat == null)  {
+	    String createdPath = zk.create(RangeLeaser.RANGES, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+	    System.out.println("Created " + createdPath);
+	}
+    }
+
+    // create the znode /problems if it doesn't already exist
+
+    public void createProblemsNode() throws KeeperException,  InterruptedException {
+	Stat stat = zk.exists(SolutionMonitor.PROBLEMS, false);
+       	if (stat == null)  {
+	    String createdPath = zk.create(SolutionMonitor.PROBLEMS, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+	    System.out.println("Created " + createdPath);
+	}
+    }
+
+    // add a problem to the end of the queue under /problems
+
+    public void enqueueProblem(String configData) throws KeeperException,  InterruptedException {
+	createProblemsNode();
+	String createdPath = zk.create(SolutionMonitor.PROBLEMS + "/p-", configData.getBytes(CHARSET), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+	System.out.println("Queued " + createdPath);
+    }
+
     // delete the znode /config which indicates to the map-reduce tasks that they should exit
 
     public void removeConfigNode() throws KeeperException,  InterruptedException {
@@ -119,29 +188,124 @@ public class Controller implements Watcher {
     }
 
 
-    // remove traces of dead workers: /workers/bc-000000000*/{solution,initial-nonce,current-nonce,active}
-    // active is ephemeral and won't exist if the task has exited
+    // remove traces of dead workers: /workers/bc-000000000* and its children.  A live
+    // worker has an ephemeral child, active, which won't exist if the task has exited.
+    // Older workers kept their state in more children, so we delete whatever is there.
   
     public void cleanUpWorkers() throws KeeperException,  InterruptedException {
-	Stat stat;
-	String path;
+	List<String> children;
 
 	try {
-	    List<String> children = zk.getChildren("/workers", false);
+	    children = zk.getChildren("/workers", false);
+	} catch (KeeperException.NoNodeException e) {
+	    System.out.println("warning: cleanup issue: check children of znode /workers");
+	    return;
+	}
+
+	// which workers are gone?  one listing per worker, all in flight together
+
+	final Map<String, List<String>> defunct = Collections.synchronizedMap(new TreeMap<String, List<String>>());
+	final RequestWindow window = new RequestWindow(WINDOW);
+
+	for (final String child : children) {
+	    window.acquire();
+	    zk.getChildren("/workers/" + child, false, new ChildrenCallback() {
+		    public void processResult(int rc, String path, Object ctx, List<String> nodes) {
+			if (rc == Code.OK.intValue()) {
+			    if (! nodes.contains("active")) {
+				defunct.put(child, nodes);
+			    }
+			} else if (rc != Code.NONODE.intValue()) {
+			    System.out.println("warning: cleanup issue: can't check " + path + ": " + Code.get(rc));
+			}
+			window.release();
+		    }
+		}, null);
+	}
+	window.drain();
+
+	// and delete them, children first
+
+	for (Map.Entry<String, List<String>> entry : defunct.entrySet()) {
+	    String path = "/workers/" + entry.getKey();
+	    System.out.println("Removing defunct task " + path);
+	    for (String node : entry.getValue()) {
+		delete(window, path + "/" + node);
+	    }
+	    delete(window, path);
+	}
+	window.drain();
+    }
+
+    // remove the nonce range records of problems that are no longer in /config
+
+    public void cleanUpRanges() throws KeeperException,  InterruptedException {
+	Stat stat = zk.exists("/config", false);
+	String current = (stat == null) ? null : RangeLeaser.problemName(stat.getMzxid());
+
+	try {
+	    List<String> children = zk.getChildren(RangeLeaser.RANGES, false);
 	    for (String child : children) {
-		path = "/workers/" + child;
-		stat = zk.exists(path + "/active", false);
-		if (stat == null) {
-		    System.out.println("Removing defunct task " + path);
-		    zk.delete(path + "/solution", -1);
-		    zk.delete(path + "/initial-nonce", -1);
-		    zk.delete(path + "/current-nonce", -1);
-		    zk.delete(path, -1);
+		if (! child.equals(current)) {
+		    System.out.println("Removing ranges for old problem " + RangeLeaser.RANGES + "/" + child);
+		    deleteRecursively(RangeLeaser.RANGES + "/" + child);
 		}
 	    }
 	} catch (KeeperException.NoNodeException e) {
-	    System.out.println("warning: cleanup issue: check children of znode /workers");
+	    System.out.println("warning: cleanup issue: check children of znode " + RangeLeaser.RANGES);
+	}
+    }
+
+    // Delete a znode and everything under it.  We list the tree a level
+    // at a time, with the listings of each level in flight together, and
+    // then delete it deepest level first.
+
+    private void deleteRecursively(String path) throws KeeperException,  InterruptedException {
+	final RequestWindow window = new RequestWindow(WINDOW);
+	List<List<String>> levels = new ArrayList<List<String>>();
+	List<String> level = Collections.singletonList(path);
+
+	while (! level.isEmpty()) {
+	    levels.add(level);
+	    final List<String> next = Collections.synchronizedList(new ArrayList<String>());
+
+	    for (final String parent : level) {
+		window.acquire();
+		zk.getChildren(parent, false, new ChildrenCallback() {
+			public void processResult(int rc, String path, Object ctx, List<String> children) {
+			    if (rc == Code.OK.intValue()) {
+				for (String child : children) {
+				    next.add(parent + "/" + child);
+				}
+			    }
+			    window.release();
+			}
+		    }, null);
+	    }
+	    window.drain();
+	    level = next;
+	}
+
+	for (int i = levels.size() - 1; i >= 0; i--) {
+	    for (String node : levels.get(i)) {
+		delete(window, node);
+	    }
 	}
+	window.drain();
+    }
+
+    // an asynchronous delete; it's fine if the node has already gone
+
+    private void delete(final RequestWindow window, String path) throws InterruptedException {
+	window.acquire();
+	zk.delete(path, -1, new VoidCallback() {
+		public void processResult(int rc, String path, Object ctx) {
+		    if (rc != Code.OK.intValue() && rc != Code.NONODE.intValue()) {
+			System.out.println("warning: cleanup issue: can't delete " + path + ": " + Code.get(rc));
+		    }
+		    window.release();
+		}
+	    }, null);
     }
 
   
@@ -152,119 +316,146 @@ public class Controller implements Watcher {
     public static void usage() {
 	System.err.println("usage:");
 	System.err.println(" java Controller host:port subcommand [subcommand args]");
-	System.err.println(" where subcommand is one of 'initialize', 'cleanup', 'shutdown', 'report'");
+	System.err.println(" where subcommand is one of 'initialize', 'cleanup', 'shutdown', 'report', 'watch', 'enqueue', 'monitor'");
 	System.err.println(" initialize <string>");
 	System.err.println("   takes one argument, a problem, and stores it to the '/config' znode");
 	System.err.println(" cleanup");
-	System.err.println("   removes completed worker tasks from the children of the '/workers' znode");
+	System.err.println("   removes completed worker tasks from the children of the '/workers' znode,");
+	System.err.println("   and nonce ranges of old problems from the '/ranges' znode");
 	System.err.println(" shutdown");
 	System.err.println("   removes the '/config' znode, which signals the worker tasks to exit");
 	System.err.println(" report");
 	System.err.println("   lists a summary of the zookeeper directory, including timing information");
+	System.err.println(" watch [refresh-seconds [window-seconds]]");
+	System.err.println("   shows the workers and their hashrates live, every refresh-seconds (default 2),");
+	System.err.println("   with rates over the last window-seconds (default 30); runs until interrupted");
+	System.err.println(" enqueue <string>");
+	System.err.println("   adds a problem to the queue under the '/problems' znode");
+	System.err.println(" monitor");
+	System.err.println("   verifies solutions as the workers find them, and moves '/config' on to the");
+	System.err.println("   next queued problem; runs until interrupted");
 	System.exit(-1);
     }
     
 
+    // what report needs to know about a worker
+
+    private static class WorkerReport {
+	boolean      active;
+	WorkerStatus status;     // null if not available
+	Stat         stat;
+    }
+
     public void report() throws KeeperException,  InterruptedException {
-	String path;
 	String config_data;
-	Stat stat;
 
-	stat = zk.exists("/config", false);
-	
-	if (stat != null) {
+	try {
 	    config_data = new String(zk.getData("/config", false, null), CHARSET);
-	} else {
+	} catch (KeeperException.NoNodeException e) {
 	    config_data = null;
 	}
 
-	if (stat == null) {
+	if (config_data == null) {
 	    System.out.println("Config: not found (system has been shutdown)");
-	} else if (config_data == null) {
-	    System.out.println("Config: no data");
 	} else {
 	    System.out.println("Config: " + config_data);
 	}
-	
-	List<String> children = zk.getChildren("/workers", false);
-	for (String child : children) {
 
-	    path = "/workers/" + child;	    
-	    
-	    String start_nonce = "not available";
+	// read every worker's status and liveness, all in flight together
 
-	    stat = zk.exists(path + "/initial-nonce", false);
-	    if (stat != null) {
-		start_nonce = new String(zk.getData(path + "/initial-nonce", false, null), CHARSET);
-	    }
+	List<String> children = zk.getChildren("/workers", false);
+	Collections.sort(children);
 
-	    stat = zk.exists(path + "/active", false);
+	final List<WorkerReport> reports = new ArrayList<WorkerReport>();
+	final RequestWindow window = new RequestWindow(WINDOW);
 
-	    if (stat == null) {
-		System.out.println("  " + path + " (" + start_nonce + ")"); 
-	    } else {
-		System.out.println("* " + path + " (" + start_nonce + ")"); 
-	    }
-	    
-	    long initial_nonce = 0;
-	    long final_nonce   = 0;
-	    long millisecs     = 0;
+	for (String child : children) {
+	    String path = "/workers/" + child;
+	    final WorkerReport report = new WorkerReport();
+	    reports.add(report);
+
+	    window.acquire();
+	    zk.exists(path + "/active", false, new StatCallback() {
+		    public void processResult(int rc, String path, Object ctx, Stat stat) {
+			report.active = (stat != null);
+			window.release();
+		    }
+		}, null);
+
+	    window.acquire();
+	    zk.getData(path, false, new DataCallback() {
+		    public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+			if (rc == Code.OK.intValue()) {
+			    try {
+				report.status = WorkerStatus.parse(data);
+				report.stat   = stat;
+			    } catch (IOException e) {
+				// left null: an older worker, or one that hasn't written its status
+			    }
+			}
+			window.release();
+		    }
+		}, null);
+	}
+	window.drain();
 
-	    Stat istat = null;
-	    Stat cstat = null;
-	    Stat sstat = null;
+	for (int i = 0; i < children.size(); i++) {
+	    String       path   = "/workers/" + children.get(i);
+	    WorkerReport report = reports.get(i);
+	    WorkerStatus status = report.status;
 
-	    istat = zk.exists(path + "/initial-nonce", false);
+	    String start_nonce = (status == null) ? "not available" : String.valueOf(status.initial_nonce);
 
-	    if (istat != null) {
-		String str = new String(zk.getData(path + "/initial-nonce", false, null), CHARSET);
-		initial_nonce = Long.parseLong(str);
+	    if (report.active) {
+		System.out.println("* " + path + " (" + start_nonce + ")"); 
 	    } else {
-		System.err.println("Can't get initial-nonce for timing data");
+		System.out.println("  " + path + " (" + start_nonce + ")"); 
 	    }
 
-	    cstat = zk.exists(path + "/current-nonce", false);
-
-	    if (cstat != null) {
-		String str = new String(zk.getData(path + "/current-nonce", false, null), CHARSET);
-		final_nonce = Long.parseLong(str);
-		millisecs = cstat.getMtime() - cstat.getCtime();
-	    } else {
-		System.err.println("Can't get current-nonce for timing data");
-	    }
-	    
-	    String soln = null;
-
-	    sstat = zk.exists(path + "/solution", false);
-
-	    if (sstat != null) {
-		byte[] data;
-		data = zk.getData(path + "/solution", false, null);
-		if (data != null) {
-		    soln = new String(data, CHARSET);
-		} else {
-		    soln = null;
-		} 
+	    if (status == null) {
+		System.err.println("Can't get worker status for timing data");
+		System.out.println("");
+		continue;
 	    }
 
-	    if (soln != null && cstat != null && istat != null) {
-		System.out.printf("     solution: %s\n", soln);		
-		System.out.printf("     %3.2f trials/sec\n", 1000.0 * (final_nonce - initial_nonce)  / millisecs);
-	    } else if (cstat != null && istat != null) {
-		System.out.printf("     %3.2f trials/sec\n", 1000.0 * (final_nonce - initial_nonce)  / millisecs);
-	    } else {
-		System.out.println("");
+	    long millisecs = report.stat.getMtime() - report.stat.getCtime();
+
+	    if (status.hasSolution()) {
+		System.out.printf("     solution: %s\n", status.getSolution());		
+	    }
+	    if (status.range_done) {
+		System.out.printf("     searched all of %d to %d, %d hashes%s\n", status.initial_nonce, status.end_nonce, status.range_hashes,
+				  status.leasing ? "; now leasing more" : "");
 	    }
+	    System.out.printf("     %3.2f trials/sec\n", 1000.0 * (status.current_nonce - status.initial_nonce)  / millisecs);
+	    System.out.printf("     %d hashes/sec at last report\n", status.hashrate);
 	}	
     }
 
 
+    // stream the state of the workers until we're interrupted
+
+    public void watch(long refresh_millis, long window_millis) throws InterruptedException {
+	new FleetWatch(zk, window_millis).run(System.out, refresh_millis);
+    }
+
+
+    // check solutions and hand out queued problems until we're interrupted
+
+    public void monitor() throws KeeperException,  InterruptedException {
+	new SolutionMonitor(zk).run();
+    }
+
+
     // entry point;  switches to one of the following sub-commands
     //
     //    cleanup                   - remove records of exited tasks from zookeeper directory
     //    initialize data-string    - initialize the bitcoin problem with data-string
     //    report                    - show some statistics for, and states of, the bitcoin tasks
     //    shutdown                  - indicate that the tasks should exit
+    //    watch                     - stream the state and hashrates of the tasks
+    //    enqueue data-string       - queue up data-string as a later problem
+    //    monitor                   - verify solutions and move on to queued problems
 
     public static void main(String[] args) throws Exception {
 	Controller controller = new Controller();
@@ -282,15 +473,29 @@ public class Controller implements Watcher {
 	if (cmd.equals("init") || cmd.equals("initialize")) {
 	    controller.createConfigNode(args[2]);
 	    controller.createWorkersNode();
+	    controller.createRangesNode();
+	    controller.createProblemsNode();
 
 	} else if (cmd.equals("clean") || cmd.equals("cleanup")) {
 	    controller.cleanUpWorkers();
+	    controller.cleanUpRanges();
 
 	} else if (cmd.equals("stop") || cmd.equals("shutdown")) {
 	    controller.removeConfigNode();
 
 	} else if (cmd.equals("report")) {
 	    controller.report();
+
+	} else if (cmd.equals("watch")) {
+	    long refresh = (args.length > 2) ? Long.parseLong(args[2]) : 2;
+	    long window  = (args.length > 3) ? Long.parseLong(args[3]) : 30;
+	    controller.watch(refresh * 1000, window * 1000);
+
+	} else if (cmd.equals("enqueue")) {
+	    controller.enqueueProblem(args[2]);
+
+	} else if (cmd.equals("monitor")) {
+	    controller.monitor();
 	} else {
 	    usage();
 	}
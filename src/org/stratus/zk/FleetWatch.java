@@ -0,0 +1,292 @@
+// A live view of the bitcoin mining workers, for "Controller watch".
+
+package org.stratus.zk;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+// Rather than walking /workers with a round trip per znode each time
+// we want to look, as report does, we read everything once and leave
+// watches behind: a child watch on /workers, data watches on /config
+// and on each worker's znode, which holds its status (see WorkerStatus),
+// and an exists watch on each worker's active node.  When a watch fires
+// we re-read just that znode, asynchronously, which sets the watch
+// again.  So we keep one session open and zookeeper tells us about
+// every change, while the display is redrawn from memory every refresh.
+//
+// Each status write carries the worker's hashrate over the last few
+// seconds; we keep those samples, timed by our clock as we read them,
+// for window_millis back from now and show their average, so the rate
+// reflects what's happening now rather than a lifetime average, without
+// jumping about from one write to the next, and a worker that stops
+// writing drops to nothing.  The fleet's hashrate is the sum over the
+// workers that are keeping up; solved and done workers are idle, and
+// count for nothing.
+//
+// A worker is "gone" once its ephemeral active node has disappeared,
+// and "stale" if it is still active but we haven't seen it publish its
+// nonce for STALE_MILLIS, e.g. it's stuck in a GC or has lost its
+// connection.  A worker that has solved the problem, or searched its
+// whole range, stops publishing until the problem changes, so it's
+// never stale.  The expected time to a solution is the expected number
+// of hashes for the current target, 2^256 / (target + 1), over the
+// fleet's hashrate.
+
+public class FleetWatch implements Watcher {
+
+    private static final Charset    CHARSET      = Charset.forName("UTF-8");
+    private static final long       STALE_MILLIS = 10000;
+    private static final BigInteger HASH_SPACE   = BigInteger.ONE.shiftLeft(256);
+
+    private final ZooKeeper zk;
+    private final long      window_millis;
+
+    private final Map<String, Worker> workers = new TreeMap<String, Worker>();   // by name, e.g. bc-0000000001
+    private String config;                                                      // the current problem, null if there's none
+
+    private static class Worker {
+	final String name;
+	boolean      active;
+	WorkerStatus status;                                // the latest we've read, null before that
+	long         last_seen;                             // our clock, when we last saw a status write
+	final LinkedList<long[]> samples = new LinkedList<long[]>();   // { when read, hashrate } of status writes, oldest first
+
+	Worker(String name) {
+	    this.name = name;
+	}
+
+	// the average of the hashrates we have from the last window_millis before now
+
+	double rate(long now, long window_millis) {
+	    while (! samples.isEmpty() && now - samples.getFirst()[0] > window_millis) {
+		samples.removeFirst();
+	    }
+	    if (samples.isEmpty()) {
+		return 0;
+	    }
+	    double total = 0;
+	    for (long[] sample : samples) {
+		total += sample[1];
+	    }
+	    return total / samples.size();
+	}
+    }
+
+    public FleetWatch(ZooKeeper zk, long window_millis) {
+	this.zk            = zk;
+	this.window_millis = window_millis;
+    }
+
+    // Start watching, and print the state of the fleet every refresh_millis; runs until interrupted.
+
+    public void run(PrintStream out, long refresh_millis) throws InterruptedException {
+	readConfig();
+	listWorkers();
+
+	while (true) {
+	    Thread.sleep(refresh_millis);
+	    print(out);
+	}
+    }
+
+    // a watch has fired: read the znode again, which sets a new watch
+
+    public void process(WatchedEvent event) {
+	String path = event.getPath();
+
+	if (path == null) {
+	    return;   // a change in the connection, not to a znode
+	}
+	if (path.equals("/config")) {
+	    readConfig();
+	} else if (path.equals("/workers")) {
+	    listWorkers();
+	} else if (path.startsWith("/workers/")) {
+	    String[] parts = path.split("/");   // "", "workers", "bc-0000000001" and perhaps "active"
+	    if (parts.length == 3) {
+		readStatus(parts[2]);
+	    } else if (parts.length == 4 && parts[3].equals("active")) {
+		readActive(parts[2]);
+	    }
+	}
+    }
+
+    private void readConfig() {
+	zk.getData("/config", this, new DataCallback() {
+		public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+		    synchronized (FleetWatch.this) {
+			config = (rc == Code.OK.intValue() && data != null) ? new String(data, CHARSET) : null;
+		    }
+		    if (rc == Code.NONODE.intValue()) {
+			zk.exists("/config", FleetWatch.this, IGNORE, null);   // tell us if it comes back
+		    }
+		}
+	    }, null);
+    }
+
+    private void listWorkers() {
+	zk.getChildren("/workers", this, new ChildrenCallback() {
+		public void processResult(int rc, String path, Object ctx, List<String> children) {
+		    if (rc != Code.OK.intValue()) {
+			return;
+		    }
+		    List<String> added = new ArrayList<String>();
+
+		    synchronized (FleetWatch.this) {
+			workers.keySet().retainAll(new HashSet<String>(children));
+			for (String child : children) {
+			    if (! workers.containsKey(child)) {
+				workers.put(child, new Worker(child));
+				added.add(child);
+			    }
+			}
+		    }
+
+		    for (String child : added) {
+			readStatus(child);
+			readActive(child);
+		    }
+		}
+	    }, null);
+    }
+
+    private void readActive(final String name) {
+	zk.exists("/workers/" + name + "/active", this, new StatCallback() {
+		public void processResult(int rc, String path, Object ctx, Stat stat) {
+		    synchronized (FleetWatch.this) {
+			Worker worker = workers.get(name);
+			if (worker != null) {
+			    worker.active = (stat != null);
+			}
+		    }
+		}
+	    }, null);
+    }
+
+    private void readStatus(final String name) {
+	zk.getData("/workers/" + name, this, new DataCallback() {
+		public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+		    if (rc != Code.OK.intValue()) {
+			return;
+		    }
+		    WorkerStatus status;
+		    try {
+			status = WorkerStatus.parse(data);
+		    } catch (IOException e) {
+			return;   // not written yet, or an older worker
+		    }
+
+		    synchronized (FleetWatch.this) {
+			Worker worker = workers.get(name);
+			if (worker != null) {
+			    sample(worker, status);
+			}
+		    }
+		}
+	    }, null);
+    }
+
+    // a new status for a worker
+
+    private void sample(Worker worker, WorkerStatus status) {
+	worker.status    = status;
+	worker.last_seen = System.currentTimeMillis();
+	worker.samples.addLast(new long[] { worker.last_seen, status.hashrate });
+    }
+
+    private synchronized void print(PrintStream out) {
+	long now = System.currentTimeMillis();
+
+	out.println();
+	out.printf("%s  %s\n", new Date(now), (config == null) ? "no /config (shut down)" : config);
+	out.printf("  %-16s %-8s %14s %16s %12s\n", "worker", "state", "nonce", "hashes/sec", "last seen");
+
+	double total  = 0;
+	int    active = 0;
+	int    stale  = 0;
+	int    gone   = 0;
+
+	for (Worker worker : workers.values()) {
+	    String state;
+	    double rate = worker.rate(now, window_millis);
+
+	    if (! worker.active) {
+		state = "gone";
+		gone++;
+	    } else if (worker.status != null && worker.status.isIdle()) {
+		state = worker.status.hasSolution() ? "solved" : "done";   // waiting, so not publishing or hashing
+		rate  = 0;
+		active++;
+	    } else if (now - worker.last_seen > STALE_MILLIS) {
+		state = "STALE";
+		stale++;
+	    } else {
+		state = "active";
+		active++;
+		total += rate;
+	    }
+
+	    String nonce = (worker.status == null) ? "?" : String.valueOf(worker.status.current_nonce);
+	    String seen  = (worker.last_seen == 0) ? "never" : String.format("%.1fs ago", (now - worker.last_seen) / 1000.0);
+
+	    out.printf("  %-16s %-8s %14s %16.0f %12s\n", worker.name, state, nonce, worker.active ? rate : 0, seen);
+	    if (worker.status != null && worker.status.hasSolution()) {
+		out.printf("  %-16s solution: %s\n", "", worker.status.getSolution());
+	    }
+	}
+
+	out.printf("  %d active, %d stale, %d gone; %.0f hashes/sec over the last %ds", active, stale, gone, total, window_millis / 1000);
+	out.printf("; expected time to solution %s\n", expectedTime(total));
+    }
+
+    // the expected time to find a solution for the current target at the given rate
+
+    private String expectedTime(double rate) {
+	if (config == null || config.indexOf('/') < 0 || rate <= 0) {
+	    return "unknown";
+	}
+
+	BigInteger target;
+	try {
+	    target = new BigInteger(config.substring(config.indexOf('/') + 1), 16);
+	} catch (NumberFormatException e) {
+	    return "unknown";
+	}
+
+	double hashes  = HASH_SPACE.divide(target.add(BigInteger.ONE)).doubleValue();
+	long   seconds = (long) (hashes / rate);
+
+	if (seconds < 120) {
+	    return seconds + "s";
+	} else if (seconds < 2 * 3600) {
+	    return (seconds / 60) + "m";
+	} else if (seconds < 2 * 86400) {
+	    return String.format("%.1fh", seconds / 3600.0);
+	} else {
+	    return String.format("%.1f days", seconds / 86400.0);
+	}
+    }
+
+    private static final StatCallback IGNORE = new StatCallback() {
+	    public void processResult(int rc, String path, Object ctx, Stat stat) { }
+	};
+}
@@ -0,0 +1,251 @@
+// Asynchronous, rate-limited publishing of a worker's progress to zookeeper.
+
+package org.stratus.zk;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+// The search loop hands us its current nonce, and the hashes it has
+// done so far, every interval; we fold them into the worker's status
+// record (see WorkerStatus) and write it to the worker's znode with an
+// asynchronous setData, so the hash threads never wait on a round trip.
+//
+// Only one write is in flight at a time, and we write at most once
+// every MIN_PUBLISH_MILLIS.  Updates that arrive in between change the
+// record in memory, and go out with the next write, since only the
+// latest state matters.  A solution, or the news that we've finished
+// our nonce range, is written as soon as nothing is in flight, whenever
+// the last write was; flush() waits for it to get there.
+//
+// We're the only writer of our znode, so each write is conditional on
+// the version we last wrote; if anything else has changed the record
+// we'd rather hear about it than overwrite it.  If the znode has been
+// cleaned up we just drop the update, as we always have.
+//
+// A lost connection (or a timeout) isn't a failure: we try the write
+// again after MIN_PUBLISH_MILLIS.  The lost write may have been applied
+// all the same, which would leave our version behind, so before the
+// next write we read the znode back: if it's at our version, or holds
+// just what we last wrote, we carry on from its version.  The same goes
+// for a BADVERSION.  Only a record somebody else has written is a real
+// conflict.
+//
+// Since the writes are asynchronous, a failure is reported by the next
+// call to publish() or publishSolution().
+
+public class ProgressPublisher implements StatCallback {
+
+    private static final long MIN_PUBLISH_MILLIS = 1000;
+
+    private final ZooKeeper    zk;
+    private final String       path;
+    private final WorkerStatus status;     // as we'll next write it
+
+    private int     version;               // of the znode, as of our last write
+    private byte[]  written;               // what we last sent
+    private boolean resync;                // version may be stale: read the znode back before writing
+    private long    retry_millis;          // after a lost connection, don't send again before this
+    private boolean dirty;                 // status has changed since the last write was issued
+    private boolean urgent;                // write as soon as nothing is in flight
+    private boolean in_flight;             // a write is outstanding
+    private long    last_write_millis;     // when the last write was issued
+    private long    write_nanos;           // and its System.nanoTime(), for latency
+    private long    rate_hashes = -1;      // hashes done at the start of the current hashrate sample
+    private long    rate_millis;           // and when that was
+    private KeeperException failure;       // first asynchronous failure, not yet reported
+
+    // status is what's in the znode at path now, at the given version
+
+    public ProgressPublisher(ZooKeeper zk, String path, WorkerStatus status, int version) {
+	this.zk      = zk;
+	this.path    = path;
+	this.status  = status;
+	this.version = version;
+    }
+
+    // Queue a progress update; hashes is the total we've done.  It's written now
+    // if nothing is in flight and we haven't written too recently.
+
+    public synchronized void publish(long nonce, long hashes) throws IOException {
+	checkFailure();
+
+	long now = System.currentTimeMillis();
+	if (rate_hashes < 0 || hashes < rate_hashes) {
+	    rate_hashes = hashes;
+	    rate_millis = now;
+	} else if (now - rate_millis >= MIN_PUBLISH_MILLIS) {
+	    status.hashrate = 1000 * (hashes - rate_hashes) / (now - rate_millis);
+	    rate_hashes     = hashes;
+	    rate_millis     = now;
+	}
+
+	status.current_nonce = nonce;
+	dirty = true;
+	send();
+    }
+
+    // The zxid of the /config write we're now working on; goes out with the next write.
+    // A solution, or a finished range, belongs to the problem it was for, so a new one clears it.
+
+    public synchronized void setGeneration(long generation) {
+	if (status.generation != generation) {
+	    status.generation    = generation;
+	    status.solution_hash = null;
+	    status.range_done    = false;
+	    status.leasing       = false;
+	    dirty = true;
+	}
+    }
+
+    // Write a solution right away, or as soon as the write in flight completes.
+
+    public synchronized void publishSolution(byte[] hash, long nonce) throws IOException {
+	checkFailure();
+	status.solution_hash  = hash.clone();
+	status.solution_nonce = nonce;
+	status.current_nonce  = nonce;
+	dirty  = true;
+	urgent = true;
+	send();
+    }
+
+    // We've searched every nonce before end_nonce, from our initial nonce, taking the given
+    // number of hashes; written right away, like a solution.
+
+    public synchronized void publishRangeDone(long end_nonce, long hashes) throws IOException {
+	checkFailure();
+	status.range_done    = true;
+	status.end_nonce     = end_nonce;
+	status.range_hashes  = hashes;
+	status.current_nonce = end_nonce - 1;
+	dirty  = true;
+	urgent = true;
+	send();
+    }
+
+    // We've leased a chunk to hash; goes out with the next write.
+
+    public synchronized void setLeasing() {
+	if (! status.leasing) {
+	    status.leasing = true;
+	    dirty = true;
+	}
+    }
+
+    // Wait up to millis milliseconds for everything we've been given to be written;
+    // returns true if it has been.
+
+    public synchronized boolean flush(long millis) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + millis;
+	urgent = dirty;
+	send();
+	while (dirty || in_flight) {
+	    long remaining = deadline - System.currentTimeMillis();
+	    if (remaining <= 0) {
+		return false;
+	    }
+	    wait(Math.min(remaining, MIN_PUBLISH_MILLIS));
+	    send();   // a retry may be due
+	}
+	return true;
+    }
+
+    // completion of a write: send along anything newer that's waiting, if it's time
+
+    public synchronized void processResult(int rc, String path, Object ctx, Stat stat) {
+	in_flight = false;
+	ZooKeeperCommunicator.latency("setData").observeSince(write_nanos);
+	if (rc == Code.OK.intValue()) {
+	    version = stat.getVersion();
+	} else if (isRetryable(rc)) {
+	    dirty        = true;     // try it again, once we know our version
+	    urgent       = true;
+	    resync       = true;
+	    retry_millis = System.currentTimeMillis() + MIN_PUBLISH_MILLIS;
+	} else if (rc == Code.BADVERSION.intValue()) {
+	    dirty  = true;
+	    urgent = true;
+	    resync = true;
+	} else if (rc != Code.NONODE.intValue()) {
+	    recordFailure(rc, path);
+	}
+	send();
+	notifyAll();   // for flush()
+    }
+
+    // completion of reading the znode back: is it at our version, or our last write?
+
+    private final DataCallback resynced = new DataCallback() {
+	    public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+		synchronized (ProgressPublisher.this) {
+		    in_flight = false;
+		    if (rc == Code.OK.intValue()) {
+			if (stat.getVersion() == version || Arrays.equals(data, written)) {
+			    version = stat.getVersion();
+			    resync  = false;
+			} else {
+			    recordFailure(Code.BADVERSION.intValue(), path);   // somebody else wrote it
+			    dirty = false;
+			}
+		    } else if (isRetryable(rc)) {
+			retry_millis = System.currentTimeMillis() + MIN_PUBLISH_MILLIS;
+		    } else if (rc == Code.NONODE.intValue()) {
+			resync = false;   // cleaned up; the write will be dropped
+		    } else {
+			recordFailure(rc, path);
+			dirty = false;
+		    }
+		    send();
+		    ProgressPublisher.this.notifyAll();
+		}
+	    }
+	};
+
+    private static boolean isRetryable(int rc) {
+	return rc == Code.CONNECTIONLOSS.intValue() || rc == Code.OPERATIONTIMEOUT.intValue();
+    }
+
+    // write the status if there's something new, nothing in flight, and it's time
+
+    private void send() {
+	long now = System.currentTimeMillis();
+
+	if (in_flight || ! dirty || now < retry_millis || (! urgent && now - last_write_millis < MIN_PUBLISH_MILLIS)) {
+	    return;
+	}
+	if (resync) {
+	    in_flight = true;
+	    zk.getData(path, false, resynced, null);
+	    return;
+	}
+	status.timestamp  = now;
+	dirty             = false;
+	urgent            = false;
+	in_flight         = true;
+	last_write_millis = now;
+	write_nanos       = System.nanoTime();
+	written           = status.toBytes();
+	zk.setData(path, written, version, this, null);
+    }
+
+    private synchronized void recordFailure(int rc, String path) {
+	if (rc != Code.OK.intValue() && failure == null) {
+	    failure = KeeperException.create(Code.get(rc), path);
+	}
+    }
+
+    private void checkFailure() throws IOException {
+	if (failure != null) {
+	    KeeperException e = failure;
+	    failure = null;
+	    throw new IOException("can't publish progress to zoo keeper: " + e.getMessage());
+	}
+    }
+}
@@ -0,0 +1,136 @@
+// Leasing of nonce ranges from zookeeper, so that workers take work as
+// fast as they can do it rather than each being handed a fixed share.
+
+package org.stratus.zk;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+
+// The nonce space for each problem is cut into chunks of CHUNK_NONCES
+// nonces; chunk n is nonces n * CHUNK_NONCES up to (n + 1) * CHUNK_NONCES.
+// Past the 32 bit nonce field, the miners roll the header's timestamp
+// (see org.stratus.Sha256d), so the chunks never run out.
+// Problems are identified by the zxid of the write that put them in
+// /config, so re-initializing starts over.  For a problem p we keep
+//
+//    /ranges/p/leases/0000000042   - ephemeral, chunk 42 is being searched; data is the worker's node name
+//    /ranges/p/done/0000000042     - persistent, chunk 42 has been searched
+//
+// A worker leases the lowest numbered chunk that is neither leased nor
+// done (or the lowest from some chunk on, for workers that have already
+// searched a fixed range below it), by creating its lease node; if another worker gets there first
+// the create fails and we look again.  Leases are ephemeral, so the
+// chunks of a worker whose session has expired are free again, and get
+// leased out to the next worker that asks.
+//
+// When a chunk is finished we create its done node before removing the
+// lease, and we list leases before done nodes, so a finished chunk
+// always shows up in at least one of the two lists.
+
+public class RangeLeaser {
+
+    public  static final long   CHUNK_NONCES = 1L << 24;
+    public  static final String RANGES       = "/ranges";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final ZooKeeper zk;
+    private final byte[]    owner;
+
+    public RangeLeaser(ZooKeeper zk, String owner) {
+	this.zk    = zk;
+	this.owner = owner.getBytes(CHARSET);
+    }
+
+    // Lease the next free chunk for a problem; returns its chunk number.
+
+    public long lease(String problem) throws IOException {
+	return lease(problem, 0);
+    }
+
+    // Lease the next free chunk for a problem from first_chunk on.
+
+    public long lease(String problem, long first_chunk) throws IOException {
+	String base = RANGES + "/" + problem;
+	try {
+	    ensureExists(RANGES);
+	    ensureExists(base);
+	    ensureExists(base + "/leases");
+	    ensureExists(base + "/done");
+
+	    while (true) {
+		Set<String> taken = new HashSet<String>(zk.getChildren(base + "/leases", false));
+		taken.addAll(zk.getChildren(base + "/done", false));
+
+		long chunk = first_chunk;
+		while (taken.contains(chunkName(chunk))) {
+		    chunk++;
+		}
+
+		try {
+		    zk.create(base + "/leases/" + chunkName(chunk), owner, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+		} catch (KeeperException.NodeExistsException e) {
+		    continue;   // somebody beat us to it
+		}
+
+		// it might have been leased and finished since we listed the children
+
+		if (zk.exists(base + "/done/" + chunkName(chunk), false) != null) {
+		    zk.delete(base + "/leases/" + chunkName(chunk), -1);
+		    continue;
+		}
+		return chunk;
+	    }
+	} catch (Exception e) {
+	    throw new IOException("can't lease a nonce range from zoo keeper: " + e.getMessage());
+	}
+    }
+
+    // Mark a leased chunk as searched, and give up the lease.
+
+    public void complete(String problem, long chunk) throws IOException {
+	String base = RANGES + "/" + problem;
+	try {
+	    try {
+		zk.create(base + "/done/" + chunkName(chunk), owner, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+	    } catch (KeeperException.NodeExistsException e) { }
+	    release(problem, chunk);
+	} catch (Exception e) {
+	    throw new IOException("can't complete nonce range in zoo keeper: " + e.getMessage());
+	}
+    }
+
+    // Give up a lease without finishing the chunk, e.g. because the problem changed.
+
+    public void release(String problem, long chunk) throws IOException {
+	try {
+	    zk.delete(RANGES + "/" + problem + "/leases/" + chunkName(chunk), -1);
+	} catch (KeeperException.NoNodeException e) {
+	} catch (Exception e) {
+	    throw new IOException("can't release nonce range in zoo keeper: " + e.getMessage());
+	}
+    }
+
+    // the name of a problem's directory under /ranges, given the zxid that last set /config
+
+    public static String problemName(long config_zxid) {
+	return String.format("p-%016x", config_zxid);
+    }
+
+    private void ensureExists(String path) throws KeeperException, InterruptedException {
+	try {
+	    zk.create(path, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+	} catch (KeeperException.NodeExistsException e) { }
+    }
+
+    private static String chunkName(long chunk) {
+	return String.format("%010d", chunk);
+    }
+}
@@ -0,0 +1,46 @@
+// A bound on the asynchronous zookeeper requests we have outstanding.
+
+package org.stratus.zk;
+
+import java.util.concurrent.Semaphore;
+
+// The controller walks hundreds or thousands of znodes under /workers
+// and /ranges.  Issuing the requests asynchronously lets them share
+// round trips, but we don't want to queue up an unbounded number at
+// once, so each request takes a permit before it's issued and gives it
+// back in its callback.  drain() waits for everything outstanding.
+//
+// Callbacks run on the zookeeper event thread, which must never block
+// on acquire(): the permits it would be waiting for are released by
+// callbacks on that same thread.  Requests are issued from the caller's
+// thread only.
+
+public class RequestWindow {
+
+    private final int       size;
+    private final Semaphore permits;
+
+    public RequestWindow(int size) {
+	this.size    = size;
+	this.permits = new Semaphore(size);
+    }
+
+    // call before issuing a request; blocks while size requests are outstanding
+
+    public void acquire() throws InterruptedException {
+	permits.acquire();
+    }
+
+    // call from the request's callback, whatever its result
+
+    public void release() {
+	permits.release();
+    }
+
+    // wait until every request issued so far has completed
+
+    public void drain() throws InterruptedException {
+	permits.acquire(size);
+	permits.release(size);
+    }
+}
@@ -0,0 +1,298 @@
+// Verifies the workers' solutions and moves them on to the next problem, for "Controller monitor".
+
+package org.stratus.zk;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+// Problems waiting to be mined are queued under /problems, in order:
+//
+//    /problems/p-0000000007    - data is a /config string, "header/target"
+//
+// ("Controller enqueue" adds one.)  The monitor watches /config, the
+// queue, /workers and the status of every worker (see WorkerStatus).
+// When a worker publishes a solution for the problem now in /config we
+// check it ourselves, with one double SHA-256 of the header it stands
+// for, and if it's good we move /config on to the problem at the head
+// of the queue.  The workers are all watching /config, so they start on
+// the new problem straight away.  If the queue is empty we say so, and
+// move on as soon as something is enqueued.
+//
+// Solutions are matched to the problem by generation, the zxid of the
+// /config write they were found for, so a late solution to an old
+// problem is never taken for a solution to the current one.
+//
+// Moving on takes two writes.  First we set /config to the problem at
+// the head of the queue, conditional on the version we verified the
+// solution against, so of two monitors only one can move it on, and if
+// /config has changed in the meantime (say an operator re-initialized
+// it) we leave both it and the queue alone.  Then we delete the head.
+// If we die in between, the head is still there, in its place, and
+// the next time we advance we recognize it, as a problem queued before
+// /config was set to it, and delete it then.  So a queued problem is
+// never lost.  (A multi-op transaction would make this one atomic
+// step, but multi only arrived in zookeeper 3.4, and we run against
+// 3.3.)
+//
+// Watches fire on zookeeper's event thread; we only note which znode
+// changed there, and do the reading and writing on the thread that
+// called run(), one znode at a time.
+
+public class SolutionMonitor implements Watcher {
+
+    public  static final String PROBLEMS = "/problems";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final ZooKeeper zk;
+    private final LinkedBlockingQueue<String> changed = new LinkedBlockingQueue<String>();   // paths whose watches have fired
+    private final Set<String> workers = new HashSet<String>();                              // those we're watching
+
+    private String config;             // the current problem, null if there's none
+    private int    config_version;     // of /config, as we read it
+    private long   config_zxid;        // the generation of the current problem
+    private long   solved_zxid = -1;   // the last generation we've verified a solution for
+
+    public SolutionMonitor(ZooKeeper zk) {
+	this.zk = zk;
+    }
+
+    // Watch for solutions until interrupted.
+
+    public void run() throws KeeperException, InterruptedException {
+	changed.add("/config");
+	changed.add(PROBLEMS);
+	changed.add("/workers");
+
+	while (true) {
+	    String path = changed.take();
+
+	    if (path.equals("/config")) {
+		readConfig();
+	    } else if (path.equals(PROBLEMS)) {
+		readQueue();
+	    } else if (path.equals("/workers")) {
+		listWorkers();
+	    } else if (path.startsWith("/workers/") && path.indexOf('/', "/workers/".length()) < 0) {
+		readStatus(path);
+	    }
+	}
+    }
+
+    // a watch has fired: look at that znode again on the monitor thread
+
+    public void process(WatchedEvent event) {
+	if (event.getPath() != null) {
+	    changed.add(event.getPath());
+	}
+    }
+
+    private void readConfig() throws KeeperException, InterruptedException {
+	try {
+	    Stat stat = new Stat();
+	    config         = new String(zk.getData("/config", this, stat), CHARSET);
+	    config_version = stat.getVersion();
+	    config_zxid    = stat.getMzxid();
+	    System.out.printf("problem %d: %s\n", config_zxid, config);
+	} catch (KeeperException.NoNodeException e) {
+	    config = null;
+	    if (zk.exists("/config", this) != null) {   // created since
+		changed.add("/config");
+	    } else {
+		System.out.println("/config has been removed (system has been shutdown)");
+	    }
+	    return;
+	}
+
+	// a solution may have come in before we knew of its problem
+
+	changed.addAll(workers);
+    }
+
+    // something has been queued; if we're waiting for a problem, this is it
+
+    private void readQueue() throws KeeperException, InterruptedException {
+	try {
+	    zk.getChildren(PROBLEMS, this);
+	} catch (KeeperException.NoNodeException e) {
+	    zk.exists(PROBLEMS, this);
+	    return;
+	}
+	if (config != null && solved_zxid == config_zxid) {
+	    advance();
+	}
+    }
+
+    private void listWorkers() throws KeeperException, InterruptedException {
+	List<String> children;
+	try {
+	    children = zk.getChildren("/workers", this);
+	} catch (KeeperException.NoNodeException e) {
+	    zk.exists("/workers", this);
+	    return;
+	}
+
+	Set<String> paths = new HashSet<String>();
+	for (String child : children) {
+	    paths.add("/workers/" + child);
+	}
+	workers.retainAll(paths);
+	for (String path : paths) {
+	    if (workers.add(path)) {
+		changed.add(path);
+	    }
+	}
+    }
+
+    // read a worker's status, and check any solution it has for the current problem
+
+    private void readStatus(String path) throws KeeperException, InterruptedException {
+	WorkerStatus status;
+	try {
+	    status = WorkerStatus.parse(zk.getData(path, this, null));
+	} catch (KeeperException.NoNodeException e) {
+	    workers.remove(path);
+	    return;
+	} catch (IOException e) {
+	    return;   // an older worker, or one that hasn't written its status
+	}
+
+	if (! status.hasSolution() || config == null || status.generation != config_zxid || solved_zxid == config_zxid) {
+	    return;
+	}
+
+	if (! verify(config, status.solution_nonce, status.solution_hash)) {
+	    System.out.printf("%s: solution %s does not check out; ignoring it\n", path, status.getSolution());
+	    return;
+	}
+
+	System.out.printf("%s: solved problem %d: %s\n", path, config_zxid, status.getSolution());
+	solved_zxid = config_zxid;
+	advance();
+    }
+
+    // the current problem is solved: move /config on to the head of the queue
+
+    private void advance() throws KeeperException, InterruptedException {
+	while (true) {
+	    List<String> queue;
+	    try {
+		queue = zk.getChildren(PROBLEMS, this);
+	    } catch (KeeperException.NoNodeException e) {
+		queue = Collections.emptyList();
+	    }
+	    if (queue.isEmpty()) {
+		System.out.println("no problems queued; waiting for one (Controller enqueue)");
+		return;
+	    }
+	    Collections.sort(queue);
+
+	    String head      = PROBLEMS + "/" + queue.get(0);
+	    Stat   head_stat = new Stat();
+	    byte[] next;
+	    try {
+		next = zk.getData(head, false, head_stat);
+	    } catch (KeeperException.NoNodeException e) {
+		continue;   // another monitor took it
+	    }
+
+	    // the problem we're on, queued before we moved on to it: we didn't get to delete it
+
+	    if (config != null && config.equals(new String(next, CHARSET)) && head_stat.getCzxid() < config_zxid) {
+		deleteHead(head);
+		continue;
+	    }
+
+	    try {
+		zk.setData("/config", next, config_version);
+	    } catch (KeeperException.BadVersionException e) {
+		System.out.println("/config changed under us; leaving " + head + " queued");
+		return;
+	    } catch (KeeperException.NoNodeException e) {
+		System.out.println("/config has been removed; leaving " + head + " queued");
+		return;
+	    }
+	    deleteHead(head);
+	    System.out.printf("moved on to %s: %s\n", head, new String(next, CHARSET));
+	    return;
+	}
+    }
+
+    private void deleteHead(String head) throws KeeperException, InterruptedException {
+	try {
+	    zk.delete(head, -1);
+	} catch (KeeperException.NoNodeException e) { }
+    }
+
+    // Is work a solution to config, a "header/target" string, with the given hash?  One double SHA-256.
+
+    static boolean verify(String config, long work, byte[] hash) {
+	String[] parts = config.split("/");
+	if (parts.length != 2) {
+	    return false;
+	}
+	byte[] prefix = hexStringToByteArray(parts[0]);
+	byte[] target = hexStringToByteArray(parts[1]);
+	if (prefix.length < 76 || target.length != 32) {
+	    return false;
+	}
+
+	// the header the work number stands for: the timestamp rolled on by its high bits, its low bits the nonce
+
+	byte[] header = new byte[80];
+	System.arraycopy(prefix, 0, header, 0, 76);
+	putLittleEndianInt(header, 68, littleEndianInt(header, 68) + (int) (work >>> 32));
+	putLittleEndianInt(header, 76, (int) work);
+
+	byte[] digest;
+	try {
+	    MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+	    digest = sha256.digest(sha256.digest(header));
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException("no SHA-256: " + e.getMessage());
+	}
+
+	// bitcoin displays and compares hashes byte reversed
+
+	for (int i = 0; i < 16; i++) {
+	    byte b = digest[i];
+	    digest[i] = digest[31 - i];
+	    digest[31 - i] = b;
+	}
+	return Arrays.equals(digest, hash) && new BigInteger(1, digest).compareTo(new BigInteger(1, target)) < 0;
+    }
+
+    private static byte[] hexStringToByteArray(String str) {
+	int len = str.length();
+	byte[] data = new byte[len / 2];
+	for (int i = 0; i < len; i += 2) {
+	    data[i / 2] = (byte) ((Character.digit(str.charAt(i), 16) << 4) + Character.digit(str.charAt(i+1), 16));
+	}
+	return data;
+    }
+
+    private static int littleEndianInt(byte[] data, int offset) {
+	return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    private static void putLittleEndianInt(byte[] data, int offset, int value) {
+	for (int i = 0; i < 4; i++) {
+	    data[offset + i] = (byte) (value >>> (8 * i));
+	}
+    }
+}
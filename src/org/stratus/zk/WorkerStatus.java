@@ -0,0 +1,157 @@
+// What a worker publishes about itself, as the data of its /workers/bc-N znode.
+
+package org.stratus.zk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// A worker used to keep its state in four child znodes (initial-nonce,
+// current-nonce, solution and active), each a decimal or hex string,
+// and every heartbeat was a write to one of them.  Now everything but
+// the ephemeral active node is one small binary record, the data of
+// the worker's own znode, written in one versioned setData:
+//
+//    byte     format version, VERSION
+//    byte     flags: HAS_SOLUTION, RANGE_DONE, LEASING
+//    long     initial nonce
+//    long     current nonce
+//    long     hashrate, hashes/sec over the last few seconds
+//    long     generation: the zxid of the /config write we're working on
+//    long     timestamp, the worker's clock in milliseconds
+//    byte[32] solution hash    } if HAS_SOLUTION
+//    long     solution nonce   }
+//    long     end nonce        } if RANGE_DONE
+//    long     range hashes     }
+//
+// That's 42 bytes, 82 with a solution, and 16 more once a worker has
+// searched the whole of its nonce range (initial nonce up to the end
+// nonce) for the current generation, with the hashes that took; all
+// big-endian.  A reader that sees a version it doesn't know, or a short
+// record, gets an IOException from parse().  RANGE_DONE comes last, so
+// readers from before it still read the rest.
+//
+// LEASING says the worker is hashing chunks it has leased (see
+// RangeLeaser), which it may go on to do after its own range is done;
+// so a worker is idle only if it's RANGE_DONE without LEASING.
+
+public class WorkerStatus {
+
+    public static final byte VERSION      = 1;
+    public static final byte HAS_SOLUTION = 1;
+    public static final byte RANGE_DONE   = 2;
+    public static final byte LEASING      = 4;
+
+    public long   initial_nonce;
+    public long   current_nonce;
+    public long   hashrate;
+    public long   generation;
+    public long   timestamp;
+    public byte[] solution_hash;      // null until we have a solution
+    public long   solution_nonce;
+    public boolean range_done;        // we've searched initial_nonce up to end_nonce
+    public long   end_nonce;
+    public long   range_hashes;
+    public boolean leasing;           // we're hashing leased chunks
+
+    public WorkerStatus(long initial_nonce) {
+	this.initial_nonce = initial_nonce;
+	this.current_nonce = initial_nonce;
+	this.timestamp     = System.currentTimeMillis();
+    }
+
+    private WorkerStatus() {
+    }
+
+    public boolean hasSolution() {
+	return solution_hash != null;
+    }
+
+    // we've searched our whole range, and aren't hashing anything else
+
+    public boolean isIdle() {
+	return hasSolution() || (range_done && ! leasing);
+    }
+
+    // the solution as the old solution znode had it, "hash/nonce", or null
+
+    public String getSolution() {
+	return hasSolution() ? byteArrayToHexString(solution_hash) + "/" + solution_nonce : null;
+    }
+
+    public byte[] toBytes() {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(98);
+	DataOutputStream      out   = new DataOutputStream(bytes);
+
+	try {
+	    out.writeByte(VERSION);
+	    out.writeByte((hasSolution() ? HAS_SOLUTION : 0) | (range_done ? RANGE_DONE : 0) | (leasing ? LEASING : 0));
+	    out.writeLong(initial_nonce);
+	    out.writeLong(current_nonce);
+	    out.writeLong(hashrate);
+	    out.writeLong(generation);
+	    out.writeLong(timestamp);
+	    if (hasSolution()) {
+		out.write(solution_hash, 0, 32);
+		out.writeLong(solution_nonce);
+	    }
+	    if (range_done) {
+		out.writeLong(end_nonce);
+		out.writeLong(range_hashes);
+	    }
+	    out.flush();
+	} catch (IOException e) {
+	    throw new RuntimeException("can't happen: " + e.getMessage());   // writing to memory
+	}
+	return bytes.toByteArray();
+    }
+
+    // read a record written by toBytes()
+
+    public static WorkerStatus parse(byte[] data) throws IOException {
+	if (data == null) {
+	    throw new IOException("no worker status");
+	}
+
+	DataInputStream in     = new DataInputStream(new ByteArrayInputStream(data));
+	WorkerStatus    status = new WorkerStatus();
+
+	byte version = in.readByte();
+	if (version != VERSION) {
+	    throw new IOException("unknown worker status version " + version);
+	}
+	byte flags = in.readByte();
+	status.leasing = (flags & LEASING) != 0;
+
+	status.initial_nonce = in.readLong();
+	status.current_nonce = in.readLong();
+	status.hashrate      = in.readLong();
+	status.generation    = in.readLong();
+	status.timestamp     = in.readLong();
+
+	if ((flags & HAS_SOLUTION) != 0) {
+	    status.solution_hash = new byte[32];
+	    in.readFully(status.solution_hash);
+	    status.solution_nonce = in.readLong();
+	}
+	if ((flags & RANGE_DONE) != 0) {
+	    status.range_done   = true;
+	    status.end_nonce    = in.readLong();
+	    status.range_hashes = in.readLong();
+	}
+	return status;
+    }
+
+    // two lower case hex digits per byte
+
+    private static String byteArrayToHexString(byte[] data) {
+	StringBuilder sb = new StringBuilder(data.length * 2);
+	for (int i = 0; i < data.length; i++) {
+	    sb.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+	    sb.append(Character.forDigit(data[i] & 0xf, 16));
+	}
+	return sb.toString();
+    }
+}
@@ -5,92 +5,314 @@ package org.stratus.zk;
 
 import java.nio.charset.Charset;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.stratus.metrics.Histogram;
+import org.stratus.metrics.MetricsRegistry;
 
 
 public class ZooKeeperCommunicator extends ConnectionWatcher {
 
     private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int PREFETCH_PROBLEMS = 4;    // queued problems we keep read ahead
 
     public  String node_name;
-    private String initial_nonce;
-    private String current_nonce;
-    private String solution;
+    private ProgressPublisher publisher;
+    private RangeLeaser leaser;
+    private volatile long config_zxid;   // identifies the problem we last read from /config, for range leases
+    private String lease_problem;        // the problem and chunk of our current lease, if any
+    private long   lease_chunk;
+
+    // Every read of /config leaves a data watch on it.  When the watch
+    // fires we bump config_generation, so that the search loop can
+    // notice a new problem (or a shutdown) with a volatile read rather
+    // than a round trip to zookeeper.
+    //
+    // We also read /config again straight away, asynchronously, from the
+    // watch, so the new problem is usually here by the time the search
+    // threads have stopped: getConfig() hands it over if it was read after
+    // the latest change, and only goes to zookeeper if it wasn't.
+
+    private volatile int config_generation;
+    private final Object config_lock = new Object();
+
+    private volatile long config_change_nanos = System.nanoTime();   // when the watch last fired
+
+    private int    prefetched_generation = -1;   // the generation prefetched_config was read in, under config_lock
+    private String prefetched_config;            // null if /config had been removed
+    private long   prefetched_zxid;
+
+    private final Watcher config_watcher = new Watcher() {
+	    public void process(WatchedEvent event) {
+		final int generation;
+		final long began = System.nanoTime();
+		config_change_nanos = began;
+		synchronized (config_lock) {
+		    generation = ++config_generation;
+		    config_lock.notifyAll();
+		}
+
+		zk.getData("/config", this, new DataCallback() {
+			public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+			    latency("getData").observeSince(began);
+			    if (rc != Code.OK.intValue() && rc != Code.NONODE.intValue()) {
+				return;   // getConfig() will go and look
+			    }
+			    synchronized (config_lock) {
+				prefetched_generation = generation;
+				prefetched_config     = (rc == Code.OK.intValue()) ? new String(data, CHARSET) : null;
+				prefetched_zxid       = (rc == Code.OK.intValue()) ? stat.getMzxid() : 0;
+			    }
+			}
+		    }, null);
+	    }
+	};
+
+    // Problems queued to follow the current one, under /problems (see
+    // SolutionMonitor).  We keep a child watch on the queue and read the
+    // first PREFETCH_PROBLEMS of them ahead of time, so the miner can have
+    // them ready to go; the monitor moves /config on to the head of the
+    // queue, so the next problem is almost always one of these.
+
+    private volatile List<String> queued = Collections.emptyList();
+    private volatile int queue_generation;
+
+    private final Watcher queue_watcher = new Watcher() {
+	    public void process(WatchedEvent event) {
+		readQueue();
+	    }
+	};
 
     //  Establish a node for ourselves under /workers.
     //
-    //  We add the following children to our newly-created node:
+    //  Its data is our status (see WorkerStatus): start nonce, where we
+    //  are now, our hashrate and any solution.  We add one child:
     //
-    //     /initial-nonce, for our start nonce
-    //     /current-nonce, for occasional updates of where we are
-    //     /solution,  to put our solution, if we find one
     //     /active, an ephemeral node which will disappear if we exit, so the master knows which workers to check, which to remove
   
     public void join(String nonce) throws KeeperException, InterruptedException {
-	String path = "/workers/bc-";
-	byte[] nonce_data = nonce.getBytes(CHARSET);
-
-	node_name = zk.create("/workers/bc-",   null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+	WorkerStatus status = new WorkerStatus(Long.parseLong(nonce));
 
-	initial_nonce = zk.create(node_name + "/initial-nonce", nonce_data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-	current_nonce = zk.create(node_name + "/current-nonce", nonce_data, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-	solution  = zk.create(node_name + "/solution", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+	node_name = zk.create("/workers/bc-", status.toBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
 	zk.create(node_name + "/active", null, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+
+	publisher = new ProgressPublisher(zk, node_name, status, 0);
+	leaser    = new RangeLeaser(zk, node_name);
+
+	readQueue();
+    }
+
+    // list /problems, leaving a watch, and read the problems at the head of the queue
+
+    private void readQueue() {
+	zk.getChildren(SolutionMonitor.PROBLEMS, queue_watcher, new ChildrenCallback() {
+		public void processResult(int rc, String path, Object ctx, List<String> children) {
+		    if (rc != Code.OK.intValue()) {
+			return;   // no queue, or we've lost our session
+		    }
+		    Collections.sort(children);
+		    int count = Math.min(children.size(), PREFETCH_PROBLEMS);
+
+		    if (count == 0) {
+			queued = Collections.emptyList();
+			queue_generation++;
+			return;
+		    }
+
+		    // callbacks all run on zookeeper's event thread, one at a time
+
+		    final String[] problems  = new String[count];
+		    final int[]    remaining = { count };
+
+		    for (int i = 0; i < count; i++) {
+			final int index = i;
+			zk.getData(path + "/" + children.get(i), false, new DataCallback() {
+				public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+				    if (rc == Code.OK.intValue() && data != null) {
+					problems[index] = new String(data, CHARSET);
+				    }
+				    if (--remaining[0] == 0) {
+					List<String> list = new ArrayList<String>(Arrays.asList(problems));
+					list.removeAll(Collections.singleton(null));   // taken off the queue while we looked
+					queued = Collections.unmodifiableList(list);
+					queue_generation++;
+				    }
+				}
+			    }, null);
+		    }
+		}
+	    }, null);
+    }
+
+    // the problems at the head of the queue, in order, as of our last look
+
+    public List<String> getQueuedProblems() {
+	return queued;
+    }
+
+    // a number that changes whenever getQueuedProblems() may have
+
+    public int getQueueGeneration() {
+	return queue_generation;
     }
   
-    // get the bitcoin mining problem
+    // get the bitcoin mining problem, or null if /config has been removed.  This
+    // (re)arms the watch on /config; read getConfigGeneration() first.
 
     public String getConfig() throws IOException {
-	try {
-	    Stat stat =  zk.exists("/config", false);
-	    if (stat == null) {
-		return null;
-	    } else {
-		return new String(zk.getData("/config", false, null), CHARSET);
+	synchronized (config_lock) {
+	    if (prefetched_generation == config_generation) {
+		if (prefetched_config != null) {
+		    config_zxid = prefetched_zxid;
+		    publisher.setGeneration(config_zxid);
+		}
+		return prefetched_config;
 	    }
+	}
 
-	    // TODO: catch exception that results in error message:
-	    //    "KeeperErrorCode = NoNode for /config" 
-	    // and return null - there's a race condition in
-	    // the above.
-
+	long began = System.nanoTime();
+	try {
+	    Stat   stat = new Stat();
+	    String data = new String(zk.getData("/config", config_watcher, stat), CHARSET);
+	    latency("getData").observeSince(began);
+	    config_zxid = stat.getMzxid();
+	    publisher.setGeneration(config_zxid);
+	    return data;
+	} catch (KeeperException.NoNodeException e) {
+	    return null;
 	} catch (Exception e) {
 	    throw new IOException("can't get config from zoo keeper: " + e.getMessage()); 
 	}	    
     }
 
-    // every once in a while we write the nonce we are using to the current-nonce node
+    // the generation of the problem we last read from /config: the zxid of its write
 
-    public void putNonce(long nonce) throws IOException {
-	try {
-	    Stat stat = zk.exists(current_nonce, false);
-	    if (stat != null) {
-		zk.setData(current_nonce, String.valueOf(nonce).getBytes(CHARSET), -1);
+    public long getProblemGeneration() {
+	return config_zxid;
+    }
+
+    // when the /config watch last fired, as a System.nanoTime(), for timing problem switches
+
+    public long getConfigChangeNanos() {
+	return config_change_nanos;
+    }
+
+    // the histogram of round trips for one kind of zookeeper request (see MetricsRegistry)
+
+    static Histogram latency(String op) {
+	return MetricsRegistry.get().histogram("zookeeper_request_seconds", "op", op);
+    }
+
+    // a number that changes whenever /config may have changed since we last read it
+
+    public int getConfigGeneration() {
+	return config_generation;
+    }
+
+    // wait for up to millis milliseconds for /config to change from the given generation;
+    // returns true if it has changed.
+
+    public boolean awaitConfigChange(int generation, long millis) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + millis;
+	synchronized (config_lock) {
+	    while (config_generation == generation) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+		    return false;
+		}
+		config_lock.wait(remaining);
 	    }
-	} catch (Exception e) {
-	    throw new IOException("can't put nonce to zoo keeper: " + e.getMessage()); 
 	}
+	return true;
     }
 
-    // if we find a solution, let's post it. a monitor program will
-    // grab it and update the /config node with the next problem.
+    // every once in a while we publish the nonce we are using, and the hashes we've done
+    // in all.  The write is asynchronous and rate limited; see ProgressPublisher.
 
-    public void putSolution(String bitcoin_solution) throws IOException {
-	try {
-	    Stat stat = zk.exists(solution, false);
-	    if (stat == null) {
-		solution  = zk.create(node_name + "/solution", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-	    }
-	    zk.setData(solution, bitcoin_solution.getBytes(CHARSET), -1);
-	} catch (Exception e) {
-	    throw new IOException("can't put solution to zoo keeper: " + e.getMessage()); 
+    public void putNonce(long nonce, long hashes) throws IOException {
+	publisher.publish(nonce, hashes);
+    }
+
+    // Lease a chunk of nonces for the problem we last read from /config; the
+    // chunk covers nonces chunk * RangeLeaser.CHUNK_NONCES on up.  We hold
+    // one lease at a time, which completeRange() or releaseRange() gives up.
+    // See RangeLeaser.
+
+    public long leaseRange() throws IOException {
+	return leaseRange(0);
+    }
+
+    // the same, but no lower than first_chunk
+
+    public long leaseRange(long first_chunk) throws IOException {
+	releaseRange();
+	long began = System.nanoTime();
+	lease_problem = problemName();
+	lease_chunk   = leaser.lease(lease_problem, first_chunk);
+	publisher.setLeasing();
+	latency("lease").observeSince(began);
+	return lease_chunk;
+    }
+
+    // we've searched the whole of our leased chunk
+
+    public void completeRange() throws IOException {
+	if (lease_problem != null) {
+	    long began = System.nanoTime();
+	    leaser.complete(lease_problem, lease_chunk);
+	    latency("complete").observeSince(began);
+	    lease_problem = null;
+	}
+    }
+
+    // give our lease back unfinished, e.g. because the problem has changed
+
+    public void releaseRange() throws IOException {
+	if (lease_problem != null) {
+	    leaser.release(lease_problem, lease_chunk);
+	    lease_problem = null;
 	}
     }
 
+    // names the current problem's directory under /ranges
+
+    private String problemName() {
+	return RangeLeaser.problemName(config_zxid);
+    }
+
+    // if we find a solution, let's post it, right away. a monitor program will
+    // grab it and update the /config node with the next problem (see SolutionMonitor).
+
+    public void putSolution(byte[] hash, long nonce) throws IOException {
+	publisher.publishSolution(hash, nonce);
+    }
+
+    // We've searched our whole nonce range, up to end_nonce, for the current problem, with
+    // the given number of hashes; also written right away.  If we're about to exit,
+    // flushProgress() makes sure it gets there.
+
+    public void putRangeDone(long end_nonce, long hashes) throws IOException {
+	publisher.publishRangeDone(end_nonce, hashes);
+    }
+
+    // wait up to millis milliseconds for our status to be written; false if it wasn't
+
+    public boolean flushProgress(long millis) throws InterruptedException {
+	return publisher.flush(millis);
+    }
+
     // connect to a zookeeper server
 
     public static ZooKeeperCommunicator setUp(String host_address, long nonce) throws IOException {
@@ -146,7 +368,7 @@ public class ZooKeeperCommunicator extends ConnectionWatcher {
 		nonce = Long.parseLong(initial_nonce);
 	    }
 	    nonce = nonce + sleep_interval;
-	    zooKeeperCommunicator.putNonce(nonce);
+	    zooKeeperCommunicator.putNonce(nonce, nonce - Long.parseLong(initial_nonce));
 	}
     }
 }